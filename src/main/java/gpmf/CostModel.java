@@ -0,0 +1,129 @@
+package gpmf;
+
+import gpmf.gp.treeGenerator.nodes.Node;
+import gpmf.gp.treeGenerator.nodes.Statement;
+
+/**
+ * Online model of the time needed to evaluate an individual. The time of a training iteration is a
+ * linear function of the number of nodes, the depth and the number of conditions of the tree,
+ * fitted by least squares to the durations measured by Trainer. Until enough evaluations have been
+ * observed the cost is proportional to numIters times the number of nodes, which is enough to rank
+ * the individuals of the first generation.
+ */
+public class CostModel {
+
+  /** Intercept, nodes, depth and conditions */
+  private static final int NUM_FEATURES = 4;
+
+  /** Number of observations needed before the fitted weights are used */
+  private static final int MIN_OBSERVATIONS = 2 * NUM_FEATURES;
+
+  /** Regularization added to the normal equations so they are never singular */
+  private static final double RIDGE = 1e-6;
+
+  /** Accumulated X'X of the observations */
+  private final double[][] xtx = new double[NUM_FEATURES][NUM_FEATURES];
+
+  /** Accumulated X'y of the observations */
+  private final double[] xty = new double[NUM_FEATURES];
+
+  private int numObservations = 0;
+
+  /** Fitted weights, null until they are solved again after new observations */
+  private double[] weights = null;
+
+  /**
+   * Predicts the cost of evaluating an individual on one fold
+   *
+   * @param individual Individual to evaluate
+   * @return Expected cost of a fold, in nanoseconds once the model is calibrated
+   */
+  public synchronized double predict(Individual individual) {
+    double[] x = features(individual);
+    if (this.numObservations < MIN_OBSERVATIONS) return individual.getNumIters() * x[1];
+
+    if (this.weights == null) this.weights = this.solve();
+    double perIter = 0.0;
+    for (int i = 0; i < NUM_FEATURES; i++) perIter += this.weights[i] * x[i];
+    return individual.getNumIters() * Math.max(perIter, Double.MIN_VALUE);
+  }
+
+  /**
+   * Records the measured cost of an evaluation
+   *
+   * @param individual Evaluated individual
+   * @param nanos Time spent training and scoring its folds
+   * @param iters Iterations trained across its folds
+   */
+  public synchronized void observe(Individual individual, long nanos, int iters) {
+    double[] x = features(individual);
+    double y = (double) nanos / Math.max(1, iters);
+
+    for (int i = 0; i < NUM_FEATURES; i++) {
+      for (int j = 0; j < NUM_FEATURES; j++) this.xtx[i][j] += x[i] * x[j];
+      this.xty[i] += x[i] * y;
+    }
+    this.numObservations++;
+    this.weights = null;
+  }
+
+  public synchronized int getNumObservations() {
+    return this.numObservations;
+  }
+
+  private static double[] features(Individual individual) {
+    return new double[] {
+      1.0,
+      individual.getTree().getOffspring(),
+      individual.getTree().getDepth(),
+      countConditions(individual.getTree().getRoot())
+    };
+  }
+
+  private static int countConditions(Node node) {
+    int count = 0;
+    while (node instanceof Statement) {
+      Statement statement = (Statement) node;
+      if (statement.getNodeType().equals("IFStmt")) {
+        count += 1;
+        count += countConditions(statement.getLeftNode());
+        count += countConditions(statement.getRightNode());
+      }
+      node = statement.getNextNode();
+    }
+    return count;
+  }
+
+  /** Solves the regularized normal equations by Gaussian elimination with partial pivoting */
+  private double[] solve() {
+    double[][] a = new double[NUM_FEATURES][NUM_FEATURES + 1];
+    for (int i = 0; i < NUM_FEATURES; i++) {
+      System.arraycopy(this.xtx[i], 0, a[i], 0, NUM_FEATURES);
+      a[i][i] += RIDGE * (1.0 + this.xtx[i][i]);
+      a[i][NUM_FEATURES] = this.xty[i];
+    }
+
+    for (int col = 0; col < NUM_FEATURES; col++) {
+      int pivot = col;
+      for (int row = col + 1; row < NUM_FEATURES; row++) {
+        if (Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+      }
+      double[] aux = a[col];
+      a[col] = a[pivot];
+      a[pivot] = aux;
+
+      for (int row = col + 1; row < NUM_FEATURES; row++) {
+        double factor = a[row][col] / a[col][col];
+        for (int k = col; k <= NUM_FEATURES; k++) a[row][k] -= factor * a[col][k];
+      }
+    }
+
+    double[] w = new double[NUM_FEATURES];
+    for (int row = NUM_FEATURES - 1; row >= 0; row--) {
+      double sum = a[row][NUM_FEATURES];
+      for (int k = row + 1; k < NUM_FEATURES; k++) sum -= a[row][k] * w[k];
+      w[row] = sum / a[row][row];
+    }
+    return w;
+  }
+}
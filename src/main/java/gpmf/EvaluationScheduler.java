@@ -0,0 +1,82 @@
+package gpmf;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Bounded scheduler of fitness evaluations. Jobs run on a work-stealing pool with a fixed number of
+ * workers, so the number of individuals trained at once, and with it the CPU and heap usage, does
+ * not grow with the population size. Parallel work forked from inside a job, such as the partitions
+ * of MF, runs on the same workers.
+ */
+public class EvaluationScheduler {
+
+  private final ForkJoinPool pool;
+
+  /** Scheduler with one worker per available processor */
+  public EvaluationScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Scheduler with a given number of workers
+   *
+   * @param numWorkers Number of workers
+   */
+  public EvaluationScheduler(int numWorkers) {
+    this.pool = new ForkJoinPool(Math.max(1, numWorkers));
+  }
+
+  public int getNumWorkers() {
+    return this.pool.getParallelism();
+  }
+
+  /**
+   * Submits a job
+   *
+   * @param job Job to run
+   * @param result Value returned by the future once the job has finished
+   * @return Future of the job
+   */
+  public <T> Future<T> submit(Runnable job, T result) {
+    return this.pool.submit(job, result);
+  }
+
+  /**
+   * Submits a job
+   *
+   * @param job Job to run
+   * @return Future of the value computed by the job
+   */
+  public <T> Future<T> submit(Callable<T> job) {
+    return this.pool.submit(job);
+  }
+
+  /**
+   * Waits until every job has finished, even if some of them fail
+   *
+   * @param futures Futures of the jobs
+   * @throws ExecutionException if a job threw an exception, the first one once every job finished
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public static void awaitAll(List<? extends Future<?>> futures)
+      throws ExecutionException, InterruptedException {
+    ExecutionException failure = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) failure = e;
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  /** Stops the workers once the submitted jobs have finished */
+  public void shutdown() {
+    this.pool.shutdown();
+  }
+}
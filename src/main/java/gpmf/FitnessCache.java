@@ -0,0 +1,192 @@
+package gpmf;
+
+import gpmf.gp.treeCompiler.TreeSimplifier;
+import gpmf.gp.treeGenerator.Tree;
+import gpmf.gp.treeGenerator.nodes.Node;
+import gpmf.gp.treeGenerator.nodes.Statement;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the cross-validated scores of evaluated individuals. Entries are keyed by the canonical
+ * form of the simplified tree, which is the one MF trains, with the operands of + and * sorted,
+ * together with every hyperparameter that affects training, so children equivalent to an earlier
+ * individual are not retrained. The semantic fingerprint of the tree is prepended when it has one,
+ * but never replaces the canonical form, since trees that agree on its probes may still differ
+ * elsewhere. The seed is left out of the key: it does not change during a run, and runs backed by a
+ * FitnessStore are trained with a fixed seed. The number of iterations trained is cached along with
+ * each score. The cache is bounded and evicts the least recently used scores. It can be backed by a
+ * FitnessStore to reuse the scores of previous runs.
+ */
+public class FitnessCache {
+
+  /** Default maximum number of cached scores */
+  public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+  private final int maxSize;
+
+  private final Map<String, Result> scores;
+
+  /** Persistent store consulted on misses, null if scores are not persisted */
+  private FitnessStore store = null;
+
+  public FitnessCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public FitnessCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.scores =
+        new LinkedHashMap<String, Result>(256, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return this.size() > FitnessCache.this.maxSize;
+          }
+        };
+  }
+
+  /**
+   * Builds the key of an individual
+   *
+   * @param individual Individual instance
+   * @param warmStart Whether its factors may be initialized from its parent
+   * @return Key of the individual
+   */
+  public static String key(Individual individual, boolean warmStart) {
+    StringBuilder key = new StringBuilder();
+    key.append(individual.getLearningRate()).append(';');
+    key.append(individual.getRegularization()).append(';');
+    key.append(individual.getNumIters()).append(';');
+    key.append(individual.getNumFactors()).append(';');
+    key.append(individual.getTrainingMode()).append(';');
+    key.append(individual.getBatchSize()).append(';');
+    key.append(individual.getOptimizer()).append(';');
+    if (warmStart) key.append(individual.getWarmStart()).append(';');
+
+    // probes can miss where two functions differ, so the fingerprint only narrows the candidates
+    // and the canonical form of the trained tree decides
+    if (individual.getFingerprint() != 0L) {
+      key.append('#').append(Long.toHexString(individual.getFingerprint())).append(';');
+    }
+    Tree tree;
+    try {
+      tree = TreeSimplifier.simplify(individual.getTree());
+    } catch (RuntimeException e) {
+      tree = individual.getTree();
+    }
+    key.append(canonical(tree.getRoot()));
+    return key.toString();
+  }
+
+  /**
+   * Canonical form of a subtree, equal for subtrees that only differ in the order of the operands
+   * of commutative operators
+   *
+   * @param node Root of the subtree
+   * @return Canonical form
+   */
+  static String canonical(Node node) {
+    if (node == null) return "_";
+
+    String operator = node.getOperator() != null ? node.getOperator().getValue() : "";
+    String left = canonical(node.getLeftNode());
+    String right = canonical(node.getRightNode());
+    if (node.getNodeType().equals("BinaryExpression")
+        && (operator.equals("+") || operator.equals("*"))
+        && left.compareTo(right) > 0) {
+      String aux = left;
+      left = right;
+      right = aux;
+    }
+
+    StringBuilder canonical = new StringBuilder();
+    canonical.append('(').append(node.getNodeType()).append(' ').append(operator);
+    if (node instanceof Statement) {
+      canonical.append(' ').append(canonical(((Statement) node).getConditionNode()));
+    }
+    canonical.append(' ').append(left).append(' ').append(right);
+    if (node instanceof Statement) {
+      canonical.append(' ').append(canonical(((Statement) node).getNextNode()));
+    }
+    return canonical.append(')').toString();
+  }
+
+  /**
+   * Returns the cached score of a key, looking it up in the store on a miss
+   *
+   * @param key Key of the individual
+   * @return Cached result, null on a miss
+   */
+  public synchronized Result get(String key) {
+    Result result = this.scores.get(key);
+    if (result == null && this.store != null) {
+      try {
+        result = this.store.get(key);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      if (result != null) this.scores.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Caches the score of a key and appends it to the store
+   *
+   * @param key Key of the individual
+   * @param score Cross-validated score
+   * @param numItersUsed Iterations trained per fold
+   */
+  public synchronized void put(String key, double score, int numItersUsed) {
+    Result result = new Result(score, numItersUsed);
+    this.scores.put(key, result);
+    if (this.store != null) {
+      try {
+        this.store.put(key, result);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public synchronized FitnessStore getStore() {
+    return this.store;
+  }
+
+  /**
+   * Sets the persistent store of the cache
+   *
+   * @param store FitnessStore instance, null to stop persisting scores
+   */
+  public synchronized void setStore(FitnessStore store) {
+    this.store = store;
+  }
+
+  public synchronized int size() {
+    return this.scores.size();
+  }
+
+  /** Cached result of the evaluation of an individual */
+  public static final class Result {
+
+    private final double score;
+
+    /** Iterations trained per fold */
+    private final int numItersUsed;
+
+    public Result(double score, int numItersUsed) {
+      this.score = score;
+      this.numItersUsed = numItersUsed;
+    }
+
+    public double getScore() {
+      return this.score;
+    }
+
+    public int getNumItersUsed() {
+      return this.numItersUsed;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package gpmf;
+
+import es.upm.etsisi.cf4j.data.DataModel;
+import es.upm.etsisi.cf4j.data.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file of cross-validated scores shared by every run on the same host. Each record
+ * holds a 128-bit hash of the FitnessCache key, salted with a context that identifies the dataset
+ * and the training setup, the score and the iterations trained, so a million entries take 32 MB.
+ * The file is read through memory-mapped views of the records appended since the last read and
+ * indexed in memory by an open addressing table of primitive arrays, up to three quarters full, so
+ * an entry takes less than 80 bytes of heap. Appends hold an exclusive lock on the file and reads a
+ * shared one, so several JVMs can use the same file at once. A JVM must not open more than one
+ * FitnessStore on the same file.
+ */
+public class FitnessStore implements Closeable {
+
+  /** "GPMFFIT1" */
+  private static final long MAGIC = 0x47504d4646495431L;
+
+  /** Magic number and record size */
+  private static final int HEADER_SIZE = 16;
+
+  /** Two hash words, the score and the iterations */
+  private static final int RECORD_SIZE = 32;
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  private final FileChannel channel;
+
+  private final long context;
+
+  /** Position of the first record not yet indexed */
+  private long position = HEADER_SIZE;
+
+  /** Open addressing index: two hash words per slot, (0, 0) marks an empty slot */
+  private long[] hashes = new long[2 * INITIAL_CAPACITY];
+
+  private double[] scores = new double[INITIAL_CAPACITY];
+
+  private int[] iters = new int[INITIAL_CAPACITY];
+
+  private int size = 0;
+
+  /**
+   * Opens a store, creating the file if it does not exist
+   *
+   * @param file Path of the file
+   * @param context Hash of the dataset and the training setup shared by the keys
+   * @throws IOException if the file cannot be opened or is not a fitness store
+   */
+  public FitnessStore(Path file, long context) throws IOException {
+    this.channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.context = context;
+
+    FileLock lock = this.channel.lock();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      if (this.channel.size() < HEADER_SIZE) {
+        header.putLong(MAGIC).putLong(RECORD_SIZE).flip();
+        this.channel.write(header, 0);
+      } else {
+        this.channel.read(header, 0);
+        header.flip();
+        if (header.getLong() != MAGIC || header.getLong() != RECORD_SIZE) {
+          this.channel.close();
+          throw new IOException(file + " is not a fitness store");
+        }
+      }
+    } finally {
+      // closing the channel has already released the lock
+      if (lock.isValid()) lock.release();
+    }
+
+    this.refresh();
+  }
+
+  /**
+   * Hashes the ratings of a datamodel
+   *
+   * @param datamodel DataModel instance
+   * @return Fingerprint of the ratings
+   */
+  public static long fingerprint(DataModel datamodel) {
+    long hash = datamodel.getNumberOfItems();
+    for (User user : datamodel.getUsers()) {
+      hash = hash * 31 + user.getId().hashCode();
+      for (int i = 0; i < user.getNumberOfRatings(); i++) {
+        hash = hash * 31 + datamodel.getItem(user.getItemAt(i)).getId().hashCode();
+        hash = hash * 31 + Double.hashCode(user.getRatingAt(i));
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the stored score of a key, reading the records appended by other processes if it is
+   * not indexed yet
+   *
+   * @param key FitnessCache key of the individual
+   * @return Stored result, null if it has never been stored
+   * @throws IOException if the file cannot be read
+   */
+  public synchronized FitnessCache.Result get(String key) throws IOException {
+    long h1 = this.hash(key, 0x9e3779b97f4a7c15L);
+    long h2 = this.hash(key, 0xc2b2ae3d27d4eb4fL);
+
+    int slot = this.find(h1, h2);
+    if (this.isEmpty(slot) && this.refresh()) slot = this.find(h1, h2);
+    return this.isEmpty(slot) ? null : new FitnessCache.Result(this.scores[slot], this.iters[slot]);
+  }
+
+  /**
+   * Appends the result of a key
+   *
+   * @param key FitnessCache key of the individual
+   * @param result Cross-validated score and iterations
+   * @throws IOException if the file cannot be written
+   */
+  public synchronized void put(String key, FitnessCache.Result result) throws IOException {
+    long h1 = this.hash(key, 0x9e3779b97f4a7c15L);
+    long h2 = this.hash(key, 0xc2b2ae3d27d4eb4fL);
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    record.putLong(h1).putLong(h2);
+    record.putLong(Double.doubleToRawLongBits(result.getScore())).putLong(result.getNumItersUsed());
+    record.flip();
+
+    FileLock lock = this.channel.lock();
+    try {
+      // a record cut short by a crashed writer is overwritten
+      long end = HEADER_SIZE + (this.channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+      while (record.hasRemaining()) this.channel.write(record, end + record.position());
+
+      // the own record is not read back, unless records of other processes precede it
+      if (end == this.position) this.position = end + RECORD_SIZE;
+    } finally {
+      lock.release();
+    }
+
+    this.index(h1, h2, result.getScore(), result.getNumItersUsed());
+  }
+
+  public synchronized int size() {
+    return this.size;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.channel.close();
+  }
+
+  /**
+   * Indexes the complete records appended since the last read. The size of the file is checked
+   * before locking it, so misses on a file that has not grown neither lock nor map it.
+   *
+   * @return true if new records were read
+   */
+  private boolean refresh() throws IOException {
+    if (this.channel.size() - this.position < RECORD_SIZE) return false;
+
+    long end;
+    MappedByteBuffer records;
+    FileLock lock = this.channel.lock(0, Long.MAX_VALUE, true);
+    try {
+      long available = (this.channel.size() - this.position) / RECORD_SIZE * RECORD_SIZE;
+      end = this.position + available;
+      records = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, available);
+    } finally {
+      lock.release();
+    }
+
+    while (records.hasRemaining()) {
+      long h1 = records.getLong();
+      long h2 = records.getLong();
+      double score = Double.longBitsToDouble(records.getLong());
+      this.index(h1, h2, score, (int) records.getLong());
+    }
+    this.position = end;
+    return true;
+  }
+
+  private void index(long h1, long h2, double score, int iters) {
+    if (4L * (this.size + 1) > 3L * this.scores.length) this.grow();
+
+    int slot = this.find(h1, h2);
+    if (this.isEmpty(slot)) {
+      this.hashes[2 * slot] = h1;
+      this.hashes[2 * slot + 1] = h2;
+      this.size++;
+    }
+    this.scores[slot] = score;
+    this.iters[slot] = iters;
+  }
+
+  /** Slot of a hash, or the empty slot where it would be inserted */
+  private int find(long h1, long h2) {
+    int mask = this.scores.length - 1;
+    int slot = (int) h1 & mask;
+    while (!this.isEmpty(slot)
+        && (this.hashes[2 * slot] != h1 || this.hashes[2 * slot + 1] != h2)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean isEmpty(int slot) {
+    return this.hashes[2 * slot] == 0L && this.hashes[2 * slot + 1] == 0L;
+  }
+
+  private void grow() {
+    long[] oldHashes = this.hashes;
+    double[] oldScores = this.scores;
+    int[] oldIters = this.iters;
+
+    this.hashes = new long[2 * oldHashes.length];
+    this.scores = new double[2 * oldScores.length];
+    this.iters = new int[2 * oldIters.length];
+    this.size = 0;
+    for (int slot = 0; slot < oldScores.length; slot++) {
+      long h1 = oldHashes[2 * slot];
+      long h2 = oldHashes[2 * slot + 1];
+      if (h1 != 0L || h2 != 0L) this.index(h1, h2, oldScores[slot], oldIters[slot]);
+    }
+  }
+
+  /** 64-bit hash of a key salted with the context, mixed with the finalizer of MurmurHash3 */
+  private long hash(String key, long salt) {
+    long hash = this.context ^ salt;
+    for (int i = 0; i < key.length(); i++) hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == 0L ? 1L : hash;
+  }
+}
@@ -3,25 +3,39 @@ package gpmf;
 import es.upm.etsisi.cf4j.data.DataModel;
 
 import es.upm.etsisi.cf4j.recommender.Recommender;
-import es.upm.etsisi.cf4j.util.optimization.GridSearchCV;
-import es.upm.etsisi.cf4j.util.optimization.ParamsGrid;
+import gpmf.gp.treeCompiler.IntervalAnalyzer;
+import gpmf.gp.treeCompiler.KernelCache;
 import gpmf.gp.treeGenerator.Tree;
 import gpmf.gp.treeGenerator.nodes.ConditionExpression;
 import gpmf.gp.treeGenerator.nodes.Expression;
 import gpmf.gp.treeGenerator.nodes.Node;
 import gpmf.gp.treeGenerator.nodes.Statement;
 import gpmf.gp.treeRepresentation.DrawTree;
+import gpmf.mf.DivergenceException;
+import gpmf.mf.FactorStore;
+import gpmf.mf.Folds;
 import gpmf.mf.MF;
+import gpmf.mf.Optimizer;
 import printer.Printer;
 import qualityMeasures.prediction.MAE;
 import qualityMeasures.prediction.MSE;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.IntStream;
 
 public class GPMF extends Recommender {
 
+  /** Number of cross-validation folds used to score individuals */
+  private static final int NUM_FOLDS = 5;
+
+  /** Seed of the fold split and of the training of every run backed by a FitnessStore */
+  private static final long STORE_SEED = 0x5c0e5eedL;
+
   /** Number of generations */
   private final int gens;
 
@@ -61,6 +75,51 @@ public class GPMF extends Recommender {
   /** Seed of the model */
   private final long seed;
 
+  /** Seed of the fold split and of the training of the individuals */
+  private long evaluationSeed;
+
+  /** Training mode of the individuals of the initial population */
+  private MF.TrainingMode trainingMode = MF.TrainingMode.BATCH;
+
+  /** Batch size of the individuals of the initial population */
+  private int batchSize = Individual.DEFAULT_BATCH_SIZE;
+
+  /** Optimizer of the individuals of the initial population */
+  private Optimizer.Type optimizer = Optimizer.Type.SGD;
+
+  /** Number of individuals trained at once */
+  private int numWorkers = Runtime.getRuntime().availableProcessors();
+
+  /** Scheduler of the fitness evaluations, alive while fit runs */
+  private EvaluationScheduler scheduler;
+
+  /** Least stable trees rejected before training, null to train every tree */
+  private IntervalAnalyzer.Stability stabilityGate = IntervalAnalyzer.Stability.UNSTABLE;
+
+  /** Number of individuals rejected by the stability gate in the current generation */
+  private int unstableRejected = 0;
+
+  /** Scores of the individuals already evaluated */
+  private final FitnessCache fitnessCache = new FitnessCache();
+
+  /** File of the FitnessStore shared with other runs, null if scores are not persisted */
+  private String fitnessStorePath = null;
+
+  /** Number of evaluations answered by the fitness cache in the current generation */
+  private int cacheHits = 0;
+
+  /** Number of individuals whose training diverged in the current generation */
+  private final AtomicInteger divergences = new AtomicInteger(0);
+
+  /** Model of the evaluation time used to train the most expensive individuals first */
+  private final CostModel costModel = new CostModel();
+
+  /** Cross-validation split shared by the training of every individual */
+  private Folds folds;
+
+  /** Optional MF parameters shared by the training of every individual */
+  private final Map<String, Object> trainingParams = new HashMap<>();
+
   /** HashMap of population trees */
   private final Map<Integer, Individual> population = new HashMap<>();
 
@@ -79,8 +138,11 @@ public class GPMF extends Recommender {
   /** Number of invalid children */
   private int invalidChildren = 0;
 
-  /** Id counter */
-  private int idCount = 0;
+  /**
+   * Id counter shared by every instance, so ids are unique within the process and the FactorStore
+   * entries of one run are never loaded by another run on the same dataset
+   */
+  private static final AtomicInteger idCount = new AtomicInteger(0);
 
   /**
    * Model constructor from a Map containing the model's hyper-parameters values. Map object must
@@ -102,6 +164,34 @@ public class GPMF extends Recommender {
    *       this improvement is limited by the value earlyStoppingValue.
    *   <li><b><em>seed</em></b> (optional): random seed for random numbers generation. If missing,
    *       random value is used.
+   *   <li><b><em>trainingMode</em></b> (optional): MF.TrainingMode of the initial population,
+   *       children inherit the mode of their parents. If missing, BATCH is used.
+   *   <li><b><em>batchSize</em></b> (optional): int value with the number of ratings of each
+   *       MINI_BATCH update of the initial population, children average the batch sizes of their
+   *       parents. If missing, Individual.DEFAULT_BATCH_SIZE is used.
+   *   <li><b><em>optimizer</em></b> (optional): Optimizer.Type of the initial population, children
+   *       inherit the optimizer of their parents. If missing, SGD is used.
+   *   <li><b><em>convergenceTolerance</em></b>, <b><em>convergenceWindow</em></b> and
+   *       <b><em>validationRatio</em></b> (optional): early stopping parameters passed to MF. If
+   *       missing, individuals are trained for all their iterations.
+   *   <li><b><em>partitions</em></b> (optional): int value with the number of partitions each MF
+   *       trains in parallel, on top of the folds trained concurrently by the workers. If missing,
+   *       each fold is trained sequentially.
+   *   <li><b><em>warmStartSize</em></b> (optional): long value with the maximum number of trained
+   *       factor values retained in FactorStore to warm-start children from the parent whose tree
+   *       they inherit. If missing, children are initialized randomly.
+   *   <li><b><em>workers</em></b> (optional): int value with the number of workers of the
+   *       evaluation scheduler. If missing, the number of available processors is used.
+   *   <li><b><em>stabilityGate</em></b> (optional): IntervalAnalyzer.Stability from which trees are
+   *       rejected without training, RISKY also rejects trees that may give NaN or infinite
+   *       predictions. If missing, only UNSTABLE trees are rejected.
+   *   <li><b><em>fitnessStore</em></b> (optional): String value with the path of a FitnessStore
+   *       file where scores are persisted and reused across runs on the same dataset. Setting it
+   *       changes what the run measures: the folds are split and the factors of every individual
+   *       initialized with a fixed store seed instead of seed, so runs with different seeds share
+   *       their scores. It is ignored when warmStartSize is greater than 0, since scores then
+   *       depend on the warm starts of the run. fit prints a message in both cases. If missing,
+   *       scores are only cached during the run.
    * </ul>
    *
    * @param datamodel DataModel instance
@@ -122,6 +212,32 @@ public class GPMF extends Recommender {
         (double) params.get("earlyStoppingValue"),
         (int) params.get("earlyStoppingCount"),
         params.containsKey("seed") ? (long) params.get("seed") : System.currentTimeMillis());
+
+    if (params.containsKey("trainingMode")) {
+      this.setTrainingMode((MF.TrainingMode) params.get("trainingMode"));
+    }
+    if (params.containsKey("batchSize")) {
+      this.setBatchSize((int) params.get("batchSize"));
+    }
+    if (params.containsKey("optimizer")) {
+      this.setOptimizer((Optimizer.Type) params.get("optimizer"));
+    }
+    for (String key :
+        new String[] {
+          "convergenceTolerance", "convergenceWindow", "validationRatio", "partitions"
+        }) {
+      if (params.containsKey(key)) this.trainingParams.put(key, params.get(key));
+    }
+    if (params.containsKey("workers")) this.setNumWorkers((int) params.get("workers"));
+    if (params.containsKey("warmStartSize")) {
+      FactorStore.setMaxSize((long) params.get("warmStartSize"));
+    }
+    if (params.containsKey("stabilityGate")) {
+      this.setStabilityGate((IntervalAnalyzer.Stability) params.get("stabilityGate"));
+    }
+    if (params.containsKey("fitnessStore")) {
+      this.setFitnessStorePath((String) params.get("fitnessStore"));
+    }
   }
 
   /**
@@ -215,6 +331,8 @@ public class GPMF extends Recommender {
 
     this.rand = new Random(seed);
     this.seed = seed;
+    this.evaluationSeed = seed;
+    this.folds = new Folds(datamodel, NUM_FOLDS, seed);
 
     generateInitialPopulation();
 
@@ -223,75 +341,243 @@ public class GPMF extends Recommender {
     }
   }
 
-  @Override
-  public synchronized double predict(int userIndex, int itemIndex) {
-    return this.bestMF.predict(userIndex, itemIndex);
+  public MF.TrainingMode getTrainingMode() {
+    return this.trainingMode;
   }
 
-  @Override
-  public void fit() {
-    Printer printer = new Printer();
+  /**
+   * Sets the training mode of the initial population. It must be called before fit.
+   *
+   * @param trainingMode Training mode
+   */
+  public void setTrainingMode(MF.TrainingMode trainingMode) {
+    this.trainingMode = trainingMode;
+    for (Individual individual : this.population.values()) {
+      individual.setTrainingMode(trainingMode);
+    }
+  }
+
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+
+  /**
+   * Sets the batch size of the initial population. It must be called before fit.
+   *
+   * @param batchSize Number of ratings of each MINI_BATCH update
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    for (Individual individual : this.population.values()) {
+      individual.setBatchSize(batchSize);
+    }
+  }
 
-    cleanInitialPopulation();
-    double previousMedian = calculateMedian();
+  public Optimizer.Type getOptimizer() {
+    return this.optimizer;
+  }
 
-    int finishCount = 0;
-    for (int i = 0; i < this.gens && finishCount < this.earlyStoppingCount; i++) {
-      printer.printGenerationHead();
+  /**
+   * Sets the optimizer of the initial population. It must be called before fit.
+   *
+   * @param optimizer Update rule of the latent factors
+   */
+  public void setOptimizer(Optimizer.Type optimizer) {
+    this.optimizer = optimizer;
+    for (Individual individual : this.population.values()) {
+      individual.setOptimizer(optimizer);
+    }
+  }
 
-      try {
-        this.newGeneration();
-      } catch (ExecutionException | InterruptedException e) {
-        e.printStackTrace();
-      }
+  public int getNumWorkers() {
+    return this.numWorkers;
+  }
 
-      double scoreMedian = calculateMedian();
+  /**
+   * Sets the number of individuals trained at once. It must be called before fit.
+   *
+   * @param numWorkers Number of workers of the evaluation scheduler
+   */
+  public void setNumWorkers(int numWorkers) {
+    this.numWorkers = Math.max(1, numWorkers);
+  }
 
-      if (Math.abs(scoreMedian - previousMedian) < this.earlyStoppingValue) {
-        finishCount++;
-      } else {
-        finishCount = 0;
-      }
+  public IntervalAnalyzer.Stability getStabilityGate() {
+    return this.stabilityGate;
+  }
 
-      previousMedian = scoreMedian;
+  /**
+   * Sets the stability from which trees are rejected before training. Rejected individuals get a
+   * NaN score, so invalid individuals of the initial population are regenerated and invalid
+   * children are discarded.
+   *
+   * @param stabilityGate Least stable trees rejected, null to train every tree
+   */
+  public void setStabilityGate(IntervalAnalyzer.Stability stabilityGate) {
+    this.stabilityGate = stabilityGate;
+  }
 
-      printer.printGenerationBody(population);
+  public String getFitnessStorePath() {
+    return this.fitnessStorePath;
+  }
 
-      MF best = new MF(datamodel, population.get(0), 42L);
-      best.fit();
+  /**
+   * Sets the file where scores are persisted across runs. It must be called before fit. While it is
+   * set, the folds are split and the factors initialized with a fixed seed instead of the seed of
+   * the model, so the scores of runs with different seeds can be shared. The file is not used if
+   * FactorStore is enabled, since scores then depend on the warm starts of the run. fit prints a
+   * message in both cases.
+   *
+   * @param fitnessStorePath Path of the FitnessStore file, null to not persist scores
+   */
+  public void setFitnessStorePath(String fitnessStorePath) {
+    this.fitnessStorePath = fitnessStorePath;
+  }
 
-      MAE maeInstance = new MAE(best);
-      MSE mseInstance = new MSE(best);
+  @Override
+  public synchronized double predict(int userIndex, int itemIndex) {
+    return this.bestMF.predict(userIndex, itemIndex);
+  }
 
-      double maeScore = maeInstance.getScore();
-      double mseScore = mseInstance.getScore();
+  @Override
+  public void fit() {
+    Printer printer = new Printer();
+    this.scheduler = new EvaluationScheduler(this.numWorkers);
+    // factors retained by earlier runs can never warm-start the individuals of this one
+    FactorStore.clear();
+    this.openFitnessStore();
 
-      printer.printGenerationMetrics(
-          population, scoreMedian, maeScore, mseScore, this.invalidChildren, i);
+    try {
+      cleanInitialPopulation();
+      double previousMedian = calculateMedian();
 
-      printer.printGenerationEnd(i == this.gens - 1 || finishCount == this.earlyStoppingCount);
+      int finishCount = 0;
+      for (int i = 0; i < this.gens && finishCount < this.earlyStoppingCount; i++) {
+        printer.printGenerationHead();
 
-      System.out.println(
-          "\nGeneration number "
-              + i
-              + " with best result: "
-              + population.get(0).getScore()
-              + " | Number of invalid children: "
-              + this.invalidChildren);
+        try {
+          this.newGeneration();
+        } catch (ExecutionException | InterruptedException e) {
+          e.printStackTrace();
+        }
 
-      this.invalidChildren = 0;
-    }
+        double scoreMedian = calculateMedian();
 
-    printer.close();
+        if (Math.abs(scoreMedian - previousMedian) < this.earlyStoppingValue) {
+          finishCount++;
+        } else {
+          finishCount = 0;
+        }
+
+        previousMedian = scoreMedian;
+
+        printer.printGenerationBody(population);
+
+        MF best = new MF(datamodel, population.get(0), 42L);
+        best.setFactorStore(false);
+        best.fit();
+
+        MAE maeInstance = new MAE(best);
+        MSE mseInstance = new MSE(best);
+
+        double maeScore = maeInstance.getScore();
+        double mseScore = mseInstance.getScore();
+
+        printer.printGenerationMetrics(
+            population, scoreMedian, maeScore, mseScore, this.invalidChildren, this.cacheHits, i);
+
+        printer.printGenerationEnd(i == this.gens - 1 || finishCount == this.earlyStoppingCount);
+
+        System.out.println(
+            "\nGeneration number "
+                + i
+                + " with best result: "
+                + population.get(0).getScore()
+                + " | Number of invalid children: "
+                + this.invalidChildren
+                + " | Kernel cache hits: "
+                + KernelCache.getHits()
+                + ", misses: "
+                + KernelCache.getMisses()
+                + " | Warm starts: "
+                + FactorStore.getHits()
+                + " | Fitness cache hits: "
+                + this.cacheHits
+                + " | Unstable trees rejected: "
+                + this.unstableRejected
+                + " | Diverged: "
+                + this.divergences.get());
+
+        this.invalidChildren = 0;
+        this.unstableRejected = 0;
+        this.cacheHits = 0;
+        this.divergences.set(0);
+      }
+    } finally {
+      // the workers and the store file are released even if a generation fails
+      this.scheduler.shutdown();
+      this.closeFitnessStore();
+      printer.close();
+    }
 
     System.out.println("Best final result: " + population.get(0).getScore());
 
-    this.bestMF = new MF(datamodel, population.get(0), this.seed);
+    this.bestMF = new MF(datamodel, this.trainingParams(population.get(0)));
+    this.bestMF.setFactorStore(false);
     this.bestMF.fit();
 
     DrawTree.draw(this.bestMF.getTree());
   }
 
+  /**
+   * Backs the fitness cache with the FitnessStore file, if any. Persisted scores must not depend on
+   * the seed of the run, so the folds are split and the individuals trained with STORE_SEED. The
+   * keys are salted with the ratings and the training parameters shared by every individual, so
+   * only scores computed with the same dataset and setup are reused.
+   */
+  private void openFitnessStore() {
+    if (this.fitnessStorePath == null) return;
+    if (FactorStore.isEnabled()) {
+      System.out.println(
+          "Fitness store "
+              + this.fitnessStorePath
+              + " ignored: scores depend on the warm starts of the run");
+      return;
+    }
+
+    this.evaluationSeed = STORE_SEED;
+    this.folds = new Folds(datamodel, NUM_FOLDS, STORE_SEED);
+    System.out.println(
+        "Fitness store "
+            + this.fitnessStorePath
+            + " enabled: folds and factors are initialized with the store seed "
+            + STORE_SEED
+            + " instead of "
+            + this.seed);
+
+    long context = FitnessStore.fingerprint(datamodel);
+    context = context * 31 + NUM_FOLDS;
+    context = context * 31 + STORE_SEED;
+    context = context * 31 + new TreeMap<>(this.trainingParams).toString().hashCode();
+    try {
+      this.fitnessCache.setStore(new FitnessStore(Paths.get(this.fitnessStorePath), context));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void closeFitnessStore() {
+    FitnessStore store = this.fitnessCache.getStore();
+    if (store == null) return;
+
+    this.fitnessCache.setStore(null);
+    try {
+      store.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   private void generateInitialPopulation() {
     int[] scalar = new int[] {1, 10, 100, 1000};
 
@@ -309,7 +595,7 @@ public class GPMF extends Recommender {
       population.put(
           i,
           new Individual(
-              this.idCount++,
+              idCount.getAndIncrement(),
               learningRate,
               regularization,
               numIters,
@@ -320,34 +606,106 @@ public class GPMF extends Recommender {
     }
   }
 
-  private void trainGeneration(boolean[] train, int poolSize)
+  private void trainGeneration(boolean[] train)
       throws ExecutionException, InterruptedException {
-    Thread[] pool = new Thread[poolSize];
-    int poolIndex = 0;
+    List<Individual> individuals = new ArrayList<>();
     for (int i = 0; i < popSize; i++) {
       if (train[i]) {
-        ParamsGrid paramsGrid = new ParamsGrid();
+        individuals.add(population.get(i));
+      }
+    }
 
-        paramsGrid.addFixedParam("individual", population.get(i));
-        paramsGrid.addFixedParam("seed", this.seed);
+    fingerprint(individuals);
+    EvaluationScheduler.awaitAll(this.submitAll(individuals));
 
-        GridSearchCV gridSearchCV =
-            new GridSearchCV(datamodel, paramsGrid, MF.class, MSE.class, 5, this.seed);
+    for (Map.Entry<Integer, Individual> individual : population.entrySet()) {
+      scores.put(individual.getKey(), individual.getValue().getScore());
+    }
+  }
 
-        Trainer t = new Trainer(gridSearchCV, population.get(i));
-        pool[poolIndex] = new Thread(t, String.valueOf(i));
-        pool[poolIndex].start();
-        poolIndex++;
+  /**
+   * Submits one cross-validation task per fold of each individual to the scheduler. Individuals
+   * rejected by the stability gate get a NaN score, individuals already in the fitness cache get
+   * their score without training, and identical individuals of the same batch share a single
+   * evaluation. The rest are submitted from the longest to the shortest expected evaluation, so
+   * the most expensive ones do not start last and set the duration of the generation.
+   *
+   * @param individuals Individuals to evaluate
+   * @return Futures of the tasks
+   */
+  private List<Future<Individual>> submitAll(List<Individual> individuals) {
+    Map<String, Trainer> trainers = new LinkedHashMap<>();
+    for (Individual individual : individuals) {
+      if (this.isRejected(individual)) {
+        individual.setScore(Double.NaN);
+        individual.setNumItersUsed(0);
+        this.unstableRejected++;
+        continue;
+      }
+
+      String key = FitnessCache.key(individual, FactorStore.isEnabled());
+
+      FitnessCache.Result result = this.fitnessCache.get(key);
+      if (result != null) {
+        individual.setScore(result.getScore());
+        individual.setNumItersUsed(result.getNumItersUsed());
+        this.cacheHits++;
+      } else if (trainers.containsKey(key)) {
+        trainers.get(key).addTwin(individual);
+        this.cacheHits++;
+      } else {
+        trainers.put(
+            key,
+            new Trainer(
+                datamodel,
+                individual,
+                this.trainingParams(individual),
+                this.folds,
+                this.costModel,
+                this.fitnessCache,
+                this.divergences,
+                key));
       }
     }
 
-    for (Thread thread : pool) {
-      thread.join();
+    Map<Trainer, Double> costs = new HashMap<>();
+    for (Trainer trainer : trainers.values()) {
+      costs.put(trainer, this.costModel.predict(trainer.getIndividual()));
     }
 
-    for (Map.Entry<Integer, Individual> individual : population.entrySet()) {
-      scores.put(individual.getKey(), individual.getValue().getScore());
+    List<Trainer> sorted = new ArrayList<>(trainers.values());
+    sorted.sort((a, b) -> Double.compare(costs.get(b), costs.get(a)));
+
+    List<Future<Individual>> futures = new ArrayList<>(sorted.size() * NUM_FOLDS);
+    for (Trainer trainer : sorted) {
+      for (int fold = 0; fold < NUM_FOLDS; fold++) {
+        futures.add(this.scheduler.submit(trainer.fold(fold), trainer.getIndividual()));
+      }
     }
+    return futures;
+  }
+
+  /**
+   * Checks the tree of an individual against the stability gate over the range MF draws the
+   * initial factors from, so a tree unstable in that range fails from the first iteration. Rejected
+   * individuals get a NaN score like the ones whose training fails: the initial population
+   * regenerates them in cleanInitialPopulation and children are discarded by selectSurvivors.
+   *
+   * @param individual Individual about to be evaluated
+   * @return true if the individual must not be trained
+   */
+  private boolean isRejected(Individual individual) {
+    if (this.stabilityGate == null) return false;
+    IntervalAnalyzer.Stability stability =
+        IntervalAnalyzer.analyze(individual.getTree(), MF.INIT_MIN, MF.INIT_MAX);
+    return stability.compareTo(this.stabilityGate) >= 0;
+  }
+
+  private Map<String, Object> trainingParams(Individual individual) {
+    Map<String, Object> params = new HashMap<>(this.trainingParams);
+    params.put("individual", individual);
+    params.put("seed", this.evaluationSeed);
+    return params;
   }
 
   private void cleanInitialPopulation() {
@@ -357,11 +715,10 @@ public class GPMF extends Recommender {
       train[i] = true;
     }
     try {
-      this.trainGeneration(train, popSize);
+      this.trainGeneration(train);
       boolean cleanFirstGeneration;
       do {
         cleanFirstGeneration = true;
-        int poolSize = 0;
         for (int i = 0; i < popSize; i++) {
           train[i] = false;
         }
@@ -386,10 +743,9 @@ public class GPMF extends Recommender {
 
             cleanFirstGeneration = false;
             train[i] = true;
-            poolSize++;
           }
         }
-        trainGeneration(train, poolSize);
+        trainGeneration(train);
       } while (!cleanFirstGeneration);
 
     } catch (ExecutionException | InterruptedException e) {
@@ -422,6 +778,7 @@ public class GPMF extends Recommender {
     this.selectParents(parents1, parents2);
     this.crossOver(parents1, parents2);
     this.mutation();
+    this.fingerprintChildren();
     this.trainChildren();
     this.selectSurvivors();
   }
@@ -487,7 +844,7 @@ public class GPMF extends Recommender {
         this.children.put(
             i * 2,
             new Individual(
-                this.idCount++,
+                idCount.getAndIncrement(),
                 learninGrateCross,
                 regularizationCross,
                 numItersCross,
@@ -499,7 +856,7 @@ public class GPMF extends Recommender {
         this.children.put(
             i * 2 + 1,
             new Individual(
-                this.idCount++,
+                idCount.getAndIncrement(),
                 learninGrateCross,
                 regularizationCross,
                 numItersCross,
@@ -508,6 +865,22 @@ public class GPMF extends Recommender {
                 population.get(parents1[i]).getId(),
                 population.get(parents2[i]).getId()));
 
+        children.get(i * 2).setTrainingMode(population.get(parents1[i]).getTrainingMode());
+        children.get(i * 2 + 1).setTrainingMode(population.get(parents2[i]).getTrainingMode());
+
+        children.get(i * 2).setWarmStart(population.get(parents1[i]).getId());
+        children.get(i * 2 + 1).setWarmStart(population.get(parents2[i]).getId());
+
+        children.get(i * 2).setOptimizer(population.get(parents1[i]).getOptimizer());
+        children.get(i * 2 + 1).setOptimizer(population.get(parents2[i]).getOptimizer());
+
+        int batchSizeCross =
+            (population.get(parents1[i]).getBatchSize()
+                    + population.get(parents2[i]).getBatchSize())
+                >> 1;
+        children.get(i * 2).setBatchSize(batchSizeCross);
+        children.get(i * 2 + 1).setBatchSize(batchSizeCross);
+
         children.get(i * 2).getTree().restructure();
         children.get(i * 2 + 1).getTree().restructure();
 
@@ -677,33 +1050,42 @@ public class GPMF extends Recommender {
     }
   }
 
-  private void trainChildren() throws InterruptedException {
-
-    Thread[] pool = new Thread[numChildren];
+  private void fingerprintChildren() {
+    List<Individual> individuals = new ArrayList<>(numChildren);
     for (int i = 0; i < numChildren; i++) {
+      individuals.add(children.get(i));
+    }
+    fingerprint(individuals);
+  }
 
-      ParamsGrid paramsGrid = new ParamsGrid();
-
-      paramsGrid.addFixedParam("individual", children.get(i));
-      paramsGrid.addFixedParam("seed", this.seed);
+  /**
+   * Computes the semantic fingerprint of each individual, which the fitness cache adds to the
+   * canonical form of its tree in the key
+   *
+   * @param individuals Individuals about to be evaluated
+   */
+  private static void fingerprint(List<Individual> individuals) {
+    for (Individual individual : individuals) {
+      individual.setFingerprint(
+          SemanticFingerprint.of(individual.getTree(), individual.getNumFactors()));
+    }
+  }
 
-      GridSearchCV gridSearchMF =
-          new GridSearchCV(datamodel, paramsGrid, MF.class, MSE.class, 5, this.seed);
+  private void trainChildren() throws ExecutionException, InterruptedException {
 
-      Trainer t = new Trainer(gridSearchMF, children.get(i));
-      pool[i] = new Thread(t, String.valueOf(i));
-      pool[i].start();
+    List<Individual> individuals = new ArrayList<>(numChildren);
+    for (int i = 0; i < numChildren; i++) {
+      individuals.add(children.get(i));
     }
 
-    for (int i = 0; i < pool.length; i++) {
-      pool[i].join();
+    EvaluationScheduler.awaitAll(this.submitAll(individuals));
+    for (int i = 0; i < numChildren; i++) {
       if (Double.isNaN(children.get(i).getScore())) this.invalidChildren++;
     }
 
     for (Map.Entry<Integer, Individual> individual : children.entrySet()) {
       childrenScores.put(individual.getKey(), individual.getValue().getScore());
     }
-    System.gc();
   }
 
   private void selectSurvivors() {
@@ -822,29 +1204,154 @@ public class GPMF extends Recommender {
   }
 }
 
-class Trainer implements Runnable {
+/**
+ * Cross-validated fitness evaluation of an individual, split in one task per fold. The score of the
+ * individual is assembled by the task of its last finished fold.
+ */
+class Trainer {
 
-  private final GridSearchCV gridSearchCV;
+  private final DataModel datamodel;
   private final Individual individual;
+  private final Map<String, Object> params;
+  private final Folds folds;
+  private final CostModel costModel;
+  private final FitnessCache fitnessCache;
+  private final String key;
+
+  /** Identical individuals that receive the same score */
+  private final List<Individual> twins = new ArrayList<>();
+
+  private final double[] foldScores;
+
+  /** Iterations trained in each fold, -1 for the folds skipped after a failure */
+  private final int[] foldIters;
 
-  Trainer(GridSearchCV gridSearchCV, Individual individual) {
-    this.gridSearchCV = gridSearchCV;
+  private final AtomicInteger pendingFolds;
+  private final AtomicLong startTime = new AtomicLong(0L);
+
+  /** Time spent by the tasks of the folds, which is observed by the cost model */
+  private final AtomicLong foldsTime = new AtomicLong(0L);
+  private volatile boolean failed = false;
+  private volatile boolean diverged = false;
+
+  /** Whether a fold failed for a reason that may not repeat, so the result is not cached */
+  private volatile boolean unexpected = false;
+
+  /** Counter of the individuals whose training diverged, shared by the trainers of a generation */
+  private final AtomicInteger divergences;
+
+  Trainer(
+      DataModel datamodel,
+      Individual individual,
+      Map<String, Object> params,
+      Folds folds,
+      CostModel costModel,
+      FitnessCache fitnessCache,
+      AtomicInteger divergences,
+      String key) {
+    this.datamodel = datamodel;
     this.individual = individual;
+    this.params = params;
+    this.folds = folds;
+    this.costModel = costModel;
+    this.fitnessCache = fitnessCache;
+    this.divergences = divergences;
+    this.key = key;
+    this.foldScores = new double[folds.getNumFolds()];
+    this.foldIters = new int[folds.getNumFolds()];
+    Arrays.fill(this.foldIters, -1);
+    this.pendingFolds = new AtomicInteger(folds.getNumFolds());
   }
 
-  @Override
-  public void run() {
-    long startTime = System.currentTimeMillis();
-    double mse;
+  Individual getIndividual() {
+    return this.individual;
+  }
 
+  /**
+   * Adds an individual identical to the evaluated one, which receives its result. It must be called
+   * before the tasks are submitted.
+   *
+   * @param twin Identical individual
+   */
+  void addTwin(Individual twin) {
+    this.twins.add(twin);
+  }
+
+  /**
+   * Task that trains and scores a fold
+   *
+   * @param fold Fold to evaluate
+   * @return Task of the fold
+   */
+  Runnable fold(int fold) {
+    return () -> this.run(fold);
+  }
+
+  private void run(int fold) {
+    this.startTime.compareAndSet(0L, System.currentTimeMillis());
+    long foldStart = System.nanoTime();
+
+    // once a fold has failed the individual is invalid, so its remaining folds are skipped
     try {
-      this.gridSearchCV.fit();
-      mse = this.gridSearchCV.getBestScore();
-      individual.setScore(mse);
-    } catch (Exception e) {
-      mse = Double.NaN;
-      individual.setScore(mse);
+      if (!this.failed) {
+        Map<String, Object> foldParams = new HashMap<>(this.params);
+        foldParams.put("folds", this.folds);
+        foldParams.put("fold", fold);
+
+        MF mf = new MF(this.datamodel, foldParams);
+        mf.fit();
+        this.foldIters[fold] = mf.getNumItersUsed();
+        this.foldScores[fold] = this.folds.mse(mf, fold);
+      }
+    } catch (DivergenceException e) {
+      this.foldIters[fold] = e.getIter();
+      this.diverged = true;
+      this.failed = true;
+    } catch (IllegalArgumentException e) {
+      // the tree cannot be compiled into a kernel
+      this.failed = true;
+    } catch (RuntimeException e) {
+      this.unexpected = true;
+      this.failed = true;
+    } catch (Error e) {
+      // errors still reach the future of the task, but the individual gets a NaN score
+      this.unexpected = true;
+      this.failed = true;
+      throw e;
+    } finally {
+      this.foldsTime.addAndGet(System.nanoTime() - foldStart);
+      if (this.pendingFolds.decrementAndGet() == 0) this.finish();
+    }
+  }
+
+  private void finish() {
+    double mse = 0.0;
+    for (double score : this.foldScores) mse += score;
+    mse = this.failed ? Double.NaN : mse / this.foldScores.length;
+
+    // iterations per fold, averaged over the folds that were trained
+    int totalIters = 0;
+    int trainedFolds = 0;
+    for (int iters : this.foldIters) {
+      if (iters < 0) continue;
+      totalIters += iters;
+      trainedFolds++;
+    }
+    int numItersUsed = trainedFolds == 0 ? 0 : Math.round((float) totalIters / trainedFolds);
+
+    individual.setScore(mse);
+    individual.setNumItersUsed(numItersUsed);
+    for (Individual twin : this.twins) {
+      twin.setScore(mse);
+      twin.setNumItersUsed(numItersUsed);
     }
+    // divergences and trees that cannot be compiled fail again on every run, other errors may not
+    if (!this.unexpected) this.fitnessCache.put(this.key, mse, numItersUsed);
+
+    if (this.diverged) this.divergences.incrementAndGet();
+
+    // aborted evaluations do not reflect the cost of a complete one
+    if (!this.failed) this.costModel.observe(individual, this.foldsTime.get(), totalIters);
 
     long endTime = System.currentTimeMillis();
 
@@ -853,7 +1360,7 @@ class Trainer implements Runnable {
     System.out.println("########################################");
     System.out.println(
         "Ha tardado: "
-            + ((endTime - startTime) / 1000)
+            + ((endTime - this.startTime.get()) / 1000)
             + " con "
             + individual.getTree().getOffspring()
             + " nodos y "
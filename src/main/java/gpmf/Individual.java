@@ -1,17 +1,28 @@
 package gpmf;
 
 import gpmf.gp.treeGenerator.Tree;
+import gpmf.mf.MF;
+import gpmf.mf.Optimizer;
 
 public class Individual {
 
+  /** Default number of ratings of each MINI_BATCH update */
+  public static final int DEFAULT_BATCH_SIZE = 256;
+
   private int id;
   private double learningRate;
   private double regularization;
   private int numIters;
+  private int numItersUsed;
   private int numFactors;
+  private MF.TrainingMode trainingMode;
+  private int batchSize;
+  private Optimizer.Type optimizer;
   private Tree tree;
   private int parent1;
   private int parent2;
+  private int warmStart;
+  private long fingerprint;
 
   private double score;
 
@@ -31,10 +42,16 @@ public class Individual {
     this.learningRate = learningRate;
     this.regularization = regularization;
     this.numIters = numIters;
+    this.numItersUsed = numIters;
     this.numFactors = numFactors;
+    this.trainingMode = MF.TrainingMode.BATCH;
+    this.batchSize = DEFAULT_BATCH_SIZE;
+    this.optimizer = Optimizer.Type.SGD;
     this.tree = tree;
     this.parent1 = parent1;
     this.parent2 = parent2;
+    this.warmStart = -1;
+    this.fingerprint = 0L;
 
     this.score = Double.NaN;
 
@@ -58,10 +75,26 @@ public class Individual {
     return numIters;
   }
 
+  public int getNumItersUsed() {
+    return numItersUsed;
+  }
+
   public int getNumFactors() {
     return numFactors;
   }
 
+  public MF.TrainingMode getTrainingMode() {
+    return trainingMode;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public Optimizer.Type getOptimizer() {
+    return optimizer;
+  }
+
   public Tree getTree() {
     return tree;
   }
@@ -74,6 +107,14 @@ public class Individual {
     return parent2;
   }
 
+  public int getWarmStart() {
+    return warmStart;
+  }
+
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
   public double getScore() {
     return score;
   }
@@ -102,12 +143,29 @@ public class Individual {
     this.numIters = numIters;
   }
 
+  public void setNumItersUsed(int numItersUsed) {
+    this.numItersUsed = numItersUsed;
+  }
+
   public void setNumFactors(int numFactors) {
     this.numFactors = numFactors;
   }
 
+  public void setTrainingMode(MF.TrainingMode trainingMode) {
+    this.trainingMode = trainingMode;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public void setOptimizer(Optimizer.Type optimizer) {
+    this.optimizer = optimizer;
+  }
+
   public void setTree(Tree tree) {
     this.tree = tree;
+    this.fingerprint = 0L;
   }
 
   public void setParent1(int parent1) {
@@ -118,6 +176,14 @@ public class Individual {
     this.parent2 = parent2;
   }
 
+  public void setWarmStart(int warmStart) {
+    this.warmStart = warmStart;
+  }
+
+  public void setFingerprint(long fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
   public void setScore(double score) {
     this.score = score;
   }
@@ -0,0 +1,93 @@
+package gpmf;
+
+import gpmf.gp.treeCompiler.PiecewiseKernel;
+import gpmf.gp.treeCompiler.Tape;
+import gpmf.gp.treeCompiler.TreeKernel;
+import gpmf.gp.treeCompiler.TreeSimplifier;
+import gpmf.gp.treeGenerator.Tree;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fingerprint of the function computed by a tree. The simplified tree is evaluated on a fixed set
+ * of random user and item factors and its outputs, rounded to single precision, are hashed, so
+ * trees that differ in their structure but compute the same prediction, such as reordered sums or
+ * x * One, share a fingerprint. A quarter of the probes lie in [0, 1), as factors are initialized,
+ * and the rest take both signs and grow up to 16 in magnitude, as they can after training. The
+ * probes are drawn from a fixed seed, so fingerprints are stable across runs. Evaluating the
+ * probes reuses the kernels of KernelCache, which training needs anyway, and takes a few
+ * microseconds per tree.
+ */
+public class SemanticFingerprint {
+
+  /** Number of probe pairs of user and item factors */
+  private static final int NUM_PROBES = 32;
+
+  private static final long PROBES_SEED = 0x5eed5eedL;
+
+  /** Ranges of the probes, negative scales draw positive factors only */
+  private static final double[] SCALES = {-1.0, 1.0, 4.0, 16.0};
+
+  /** User and item probes of each number of factors */
+  private static final Map<Integer, double[][]> probes = new ConcurrentHashMap<>();
+
+  private SemanticFingerprint() {}
+
+  /**
+   * Computes the fingerprint of a tree
+   *
+   * @param tree Tree to fingerprint
+   * @param numFactors Number of factors of the tree
+   * @return Fingerprint of the tree, 0 if it cannot be evaluated or no output is finite
+   */
+  public static long of(Tree tree, int numFactors) {
+    double[][] pq = probes.computeIfAbsent(numFactors, SemanticFingerprint::draw);
+    double[] p = pq[0];
+    double[] q = pq[1];
+
+    PiecewiseKernel piecewiseKernel;
+    try {
+      piecewiseKernel = new PiecewiseKernel(TreeSimplifier.simplify(tree), numFactors);
+    } catch (Exception e) {
+      return 0L;
+    }
+
+    long hash = 0xcbf29ce484222325L;
+    boolean finite = false;
+    for (int probe = 0; probe < NUM_PROBES; probe++) {
+      int offset = probe * numFactors;
+
+      double value;
+      try {
+        TreeKernel kernel = piecewiseKernel.select(p, offset, q, offset);
+        double[] registers = Tape.get().ensure(kernel).getRegisters();
+        value = kernel.getFunction().eval(p, offset, q, offset, registers);
+      } catch (Exception e) {
+        return 0L;
+      }
+
+      finite |= !Double.isNaN(value) && !Double.isInfinite(value);
+
+      // -0.0 and 0.0 are the same prediction, and floatToIntBits collapses every NaN
+      float rounded = (float) value == 0.0f ? 0.0f : (float) value;
+      hash = (hash ^ Float.floatToIntBits(rounded)) * 0x100000001b3L;
+    }
+    if (!finite) return 0L;
+    return hash == 0L ? 1L : hash;
+  }
+
+  /** Draws the probes of a number of factors */
+  private static double[][] draw(int numFactors) {
+    Random random = new Random(PROBES_SEED + numFactors);
+    double[] p = new double[NUM_PROBES * numFactors];
+    double[] q = new double[NUM_PROBES * numFactors];
+    for (int i = 0; i < p.length; i++) {
+      double scale = SCALES[i / numFactors % SCALES.length];
+      p[i] = scale < 0 ? -scale * random.nextDouble() : scale * (2.0 * random.nextDouble() - 1.0);
+      q[i] = scale < 0 ? -scale * random.nextDouble() : scale * (2.0 * random.nextDouble() - 1.0);
+    }
+    return new double[][] {p, q};
+  }
+}
@@ -0,0 +1,433 @@
+package gpmf.gp.treeCompiler;
+
+/**
+ * Forward-mode automatic differentiation of a Kernel. Every register carries a dual number: its
+ * value and its tangent with respect to pu0..puK and qi0..qiK. A single pass over the instructions
+ * returns the prediction and the full gradient, instead of evaluating one derivative expression per
+ * factor.
+ *
+ * <p>Derivative rules are applied in the same form Term.diff uses, including which terms are
+ * structurally zero for each variable, so the gradient matches the one of the symbolic derivatives
+ * also when they evaluate to NaN or infinity.
+ *
+ * <p>Instructions are also split by scope so callers can hoist loop invariants: evalUser computes
+ * the constant and user-only registers, evalItem the item-only ones and evalMixed the remaining
+ * ones. Together they perform exactly the same operations as eval.
+ */
+public class DualKernel {
+
+  /** Kernel with the instructions to differentiate */
+  private final Kernel kernel;
+
+  /** Number of factors */
+  private final int numFactors;
+
+  /** Number of variables, pu0..puK followed by qi0..qiK */
+  private final int numVariables;
+
+  /** Whether each register depends on any factor */
+  private final boolean[] active;
+
+  /**
+   * Whether the derivative of each register with respect to each variable is not structurally
+   * zero, numVariables positions per register. Tangents of structural zeros are never stored.
+   */
+  private final boolean[] dependencies;
+
+  /** Every instruction */
+  private final int[] allPart;
+
+  /** Constant and user-only instructions */
+  private final int[] userPart;
+
+  /** Item-only instructions */
+  private final int[] itemPart;
+
+  /** Instructions depending on both user and item factors */
+  private final int[] mixedPart;
+
+  public DualKernel(Kernel kernel, int numFactors) {
+    this.kernel = kernel;
+    this.numFactors = numFactors;
+    this.numVariables = 2 * numFactors;
+
+    int[] ops = kernel.ops;
+    int n = this.numVariables;
+    this.active = new boolean[ops.length];
+    this.dependencies = new boolean[ops.length * n];
+    for (int i = 0; i < ops.length; i++) {
+      int l = kernel.left[i] * n;
+      int r = kernel.right[i] * n;
+      for (int k = 0; k < n; k++) {
+        boolean dependency;
+        switch (ops[i]) {
+          case Term.ZERO:
+          case Term.ONE:
+          case Term.CONST:
+            dependency = false;
+            break;
+          case Term.PU:
+            dependency = k == kernel.left[i];
+            break;
+          case Term.QI:
+            dependency = k == numFactors + kernel.left[i];
+            break;
+          case Term.ADD:
+          case Term.SUB:
+          case Term.MUL:
+            dependency = this.dependencies[l + k] || this.dependencies[r + k];
+            break;
+          case Term.POW:
+            // the symbolic rule keeps the base term even when no operand depends on the variable
+            dependency = true;
+            break;
+          case Term.POWN:
+            if (kernel.values[i] == 0.0) dependency = false;
+            else if (kernel.values[i] == 2.0) dependency = true;
+            else dependency = this.dependencies[l + k];
+            break;
+          default:
+            dependency = this.dependencies[l + k];
+        }
+        this.dependencies[i * n + k] = dependency;
+        this.active[i] |= dependency;
+      }
+    }
+
+    int[] counts = new int[Kernel.MIXED + 1];
+    for (int i = 0; i < ops.length; i++) counts[kernel.scopes[i]]++;
+    this.allPart = new int[ops.length];
+    this.userPart = new int[counts[Kernel.CONSTANT] + counts[Kernel.USER]];
+    this.itemPart = new int[counts[Kernel.ITEM]];
+    this.mixedPart = new int[counts[Kernel.MIXED]];
+    int all = 0, user = 0, item = 0, mixed = 0;
+    for (int i = 0; i < ops.length; i++) {
+      this.allPart[all++] = i;
+      switch (kernel.scopes[i]) {
+        case Kernel.ITEM:
+          this.itemPart[item++] = i;
+          break;
+        case Kernel.MIXED:
+          this.mixedPart[mixed++] = i;
+          break;
+        default:
+          this.userPart[user++] = i;
+      }
+    }
+  }
+
+  public int getNumRegisters() {
+    return this.kernel.getNumRegisters();
+  }
+
+  public int getNumVariables() {
+    return this.numVariables;
+  }
+
+  /**
+   * Size of the tangents buffer required by eval
+   *
+   * @return Number of registers times number of variables
+   */
+  public int getNumTangents() {
+    return this.kernel.getNumRegisters() * this.numVariables;
+  }
+
+  /**
+   * Whether some instructions can be hoisted out of the ratings loop
+   *
+   * @return true if the kernel has constant, user-only or item-only instructions
+   */
+  public boolean isSeparable() {
+    return this.mixedPart.length < this.allPart.length;
+  }
+
+  /**
+   * Size of the buffer required to save the item-only registers with saveItem
+   *
+   * @return Number of item-only registers times one plus the number of variables
+   */
+  public int getItemStateSize() {
+    return this.itemPart.length * (1 + this.numVariables);
+  }
+
+  /**
+   * Evaluates the kernel and its gradient
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param tangents Scratch buffer of at least getNumTangents() positions
+   * @param gradient Output buffer of getNumVariables() positions: derivatives with respect to
+   *     pu0..puK followed by qi0..qiK
+   * @return Value of the compiled expression
+   */
+  public double eval(
+      double[] p,
+      int pu,
+      double[] q,
+      int qi,
+      double[] registers,
+      double[] tangents,
+      double[] gradient) {
+    this.run(this.allPart, p, pu, q, qi, registers, tangents);
+    return this.output(registers, tangents, gradient);
+  }
+
+  /**
+   * Evaluates the constant and user-only registers
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param tangents Scratch buffer of at least getNumTangents() positions
+   */
+  public void evalUser(double[] p, int pu, double[] registers, double[] tangents) {
+    this.run(this.userPart, p, pu, null, 0, registers, tangents);
+  }
+
+  /**
+   * Evaluates the item-only registers
+   *
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param tangents Scratch buffer of at least getNumTangents() positions
+   */
+  public void evalItem(double[] q, int qi, double[] registers, double[] tangents) {
+    this.run(this.itemPart, null, 0, q, qi, registers, tangents);
+  }
+
+  /**
+   * Evaluates the remaining registers and the gradient. evalUser and evalItem, or loadItem, must
+   * have been called before with the same buffers.
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param tangents Scratch buffer of at least getNumTangents() positions
+   * @param gradient Output buffer of getNumVariables() positions
+   * @return Value of the compiled expression
+   */
+  public double evalMixed(
+      double[] p,
+      int pu,
+      double[] q,
+      int qi,
+      double[] registers,
+      double[] tangents,
+      double[] gradient) {
+    this.run(this.mixedPart, p, pu, q, qi, registers, tangents);
+    return this.output(registers, tangents, gradient);
+  }
+
+  /**
+   * Saves the item-only registers and their tangents
+   *
+   * @param registers Registers filled by evalItem
+   * @param tangents Tangents filled by evalItem
+   * @param state Destination buffer
+   * @param offset Offset inside state, getItemStateSize() positions are written
+   */
+  public void saveItem(double[] registers, double[] tangents, double[] state, int offset) {
+    int n = this.numVariables;
+    for (int i : this.itemPart) {
+      state[offset++] = registers[i];
+      System.arraycopy(tangents, i * n, state, offset, n);
+      offset += n;
+    }
+  }
+
+  /**
+   * Restores the item-only registers and their tangents saved by saveItem
+   *
+   * @param state Source buffer
+   * @param offset Offset inside state
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param tangents Scratch buffer of at least getNumTangents() positions
+   */
+  public void loadItem(double[] state, int offset, double[] registers, double[] tangents) {
+    int n = this.numVariables;
+    for (int i : this.itemPart) {
+      registers[i] = state[offset++];
+      System.arraycopy(state, offset, tangents, i * n, n);
+      offset += n;
+    }
+  }
+
+  private double output(double[] registers, double[] tangents, double[] gradient) {
+    int n = this.numVariables;
+    int output = this.kernel.output * n;
+    for (int k = 0; k < n; k++) {
+      gradient[k] = this.dependencies[output + k] ? tangents[output + k] : 0.0;
+    }
+    return registers[this.kernel.output];
+  }
+
+  private void run(
+      int[] part, double[] p, int pu, double[] q, int qi, double[] registers, double[] tangents) {
+    int[] ops = this.kernel.ops;
+    int[] left = this.kernel.left;
+    int[] right = this.kernel.right;
+    double[] values = this.kernel.values;
+    boolean[] active = this.active;
+    boolean[] dependencies = this.dependencies;
+    int n = this.numVariables;
+
+    for (int i : part) {
+      int l = left[i];
+      int r = right[i];
+      int ti = i * n;
+      int tl = l * n;
+      int tr = r * n;
+
+      double res;
+      switch (ops[i]) {
+        case Term.ZERO:
+          res = 0.0;
+          break;
+        case Term.ONE:
+          res = 1.0;
+          break;
+        case Term.CONST:
+          res = values[i];
+          break;
+        case Term.PU:
+          res = p[pu + l];
+          tangents[ti + l] = 1.0;
+          break;
+        case Term.QI:
+          res = q[qi + l];
+          tangents[ti + this.numFactors + l] = 1.0;
+          break;
+        case Term.ADD:
+          res = registers[l] + registers[r];
+          for (int k = 0; k < n; k++) {
+            if (!dependencies[ti + k]) continue;
+            if (!dependencies[tr + k]) tangents[ti + k] = tangents[tl + k];
+            else if (!dependencies[tl + k]) tangents[ti + k] = tangents[tr + k];
+            else tangents[ti + k] = tangents[tl + k] + tangents[tr + k];
+          }
+          break;
+        case Term.SUB:
+          res = registers[l] - registers[r];
+          for (int k = 0; k < n; k++) {
+            if (!dependencies[ti + k]) continue;
+            if (!dependencies[tr + k]) tangents[ti + k] = tangents[tl + k];
+            else if (!dependencies[tl + k]) tangents[ti + k] = -tangents[tr + k];
+            else tangents[ti + k] = tangents[tl + k] - tangents[tr + k];
+          }
+          break;
+        case Term.MUL:
+          {
+            double a = registers[l];
+            double b = registers[r];
+            res = a * b;
+            for (int k = 0; k < n; k++) {
+              if (!dependencies[ti + k]) continue;
+              if (!dependencies[tr + k]) tangents[ti + k] = tangents[tl + k] * b;
+              else if (!dependencies[tl + k]) tangents[ti + k] = a * tangents[tr + k];
+              else tangents[ti + k] = tangents[tl + k] * b + a * tangents[tr + k];
+            }
+          }
+          break;
+        case Term.NEG:
+          res = -registers[l];
+          for (int k = 0; k < n; k++) {
+            if (dependencies[ti + k]) tangents[ti + k] = -tangents[tl + k];
+          }
+          break;
+        case Term.POW:
+          {
+            double base = registers[l];
+            double exponent = registers[r];
+            res = Term.pow(base, exponent);
+            double basePow = Term.pow(base, exponent - 1.0);
+            double baseLog = Term.log(base);
+            for (int k = 0; k < n; k++) {
+              double baseDiff = dependencies[tl + k] ? tangents[tl + k] : 0.0;
+              double basePart = exponent * baseDiff * basePow;
+              if (!dependencies[tr + k]) {
+                tangents[ti + k] = basePart;
+              } else {
+                double powPart = tangents[tr + k] * baseLog * res;
+                tangents[ti + k] = dependencies[tl + k] ? powPart + basePart : powPart;
+              }
+            }
+          }
+          break;
+        case Term.POWN:
+          {
+            double x = registers[l];
+            double exponent = values[i];
+            res = Term.pow(x, exponent);
+            if (exponent == 1.0) {
+              for (int k = 0; k < n; k++) {
+                if (dependencies[ti + k]) tangents[ti + k] = tangents[tl + k];
+              }
+            } else if (exponent == 2.0) {
+              for (int k = 0; k < n; k++) {
+                double d = dependencies[tl + k] ? tangents[tl + k] : 0.0;
+                tangents[ti + k] = 2.0 * (x * d);
+              }
+            } else if (active[i]) {
+              double xPow = Term.pow(x, exponent - 1.0);
+              for (int k = 0; k < n; k++) {
+                if (dependencies[ti + k]) tangents[ti + k] = exponent * (xPow * tangents[tl + k]);
+              }
+            }
+          }
+          break;
+        case Term.LOG:
+          res = Term.log(registers[l]);
+          if (active[i]) {
+            double inv = Term.pow(registers[l], -1.0);
+            for (int k = 0; k < n; k++) {
+              if (dependencies[ti + k]) tangents[ti + k] = inv * tangents[tl + k];
+            }
+          }
+          break;
+        case Term.EXP:
+          res = Math.exp(registers[l]);
+          for (int k = 0; k < n; k++) {
+            if (dependencies[ti + k]) tangents[ti + k] = res * tangents[tl + k];
+          }
+          break;
+        case Term.SIN:
+          res = Math.sin(registers[l]);
+          if (active[i]) {
+            double cos = Math.cos(registers[l]);
+            for (int k = 0; k < n; k++) {
+              if (dependencies[ti + k]) tangents[ti + k] = cos * tangents[tl + k];
+            }
+          }
+          break;
+        case Term.COS:
+          res = Math.cos(registers[l]);
+          if (active[i]) {
+            double sin = Math.sin(registers[l]);
+            for (int k = 0; k < n; k++) {
+              if (dependencies[ti + k]) tangents[ti + k] = -(sin * tangents[tl + k]);
+            }
+          }
+          break;
+        case Term.ATAN:
+          res = Math.atan(registers[l]);
+          if (active[i]) {
+            double inv = Term.pow(1.0 + Term.pow(registers[l], 2.0), -1.0);
+            for (int k = 0; k < n; k++) {
+              if (dependencies[ti + k]) tangents[ti + k] = inv * tangents[tl + k];
+            }
+          }
+          break;
+        default:
+          res = Double.NaN;
+      }
+      registers[i] = res;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package gpmf.gp.treeCompiler;
+
+/**
+ * Symbolic gradient of a tree expression compiled as a single DAG. The function and its partial
+ * derivatives with respect to pu0..puK and qi0..qiK are compiled together into one Kernel, so the
+ * subterms they share are evaluated once per rating instead of once per derivative.
+ */
+public class GradientDag {
+
+  /** Kernel whose outputs are the function followed by every partial derivative */
+  private final Kernel kernel;
+
+  /** Number of variables, pu0..puK followed by qi0..qiK */
+  private final int numVariables;
+
+  /**
+   * Differentiates a term and compiles the result
+   *
+   * @param function Term to differentiate
+   * @param numFactors Number of factors
+   */
+  public GradientDag(Term function, int numFactors) {
+    this.numVariables = 2 * numFactors;
+
+    Term[] terms = new Term[1 + this.numVariables];
+    terms[0] = function;
+    for (int k = 0; k < numFactors; k++) {
+      terms[1 + k] = function.diff(Term.PU, k);
+      terms[1 + numFactors + k] = function.diff(Term.QI, k);
+    }
+    this.kernel = Kernel.compile(terms);
+  }
+
+  public int getNumRegisters() {
+    return this.kernel.getNumRegisters();
+  }
+
+  public int getNumVariables() {
+    return this.numVariables;
+  }
+
+  /**
+   * Evaluates the function and its gradient
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param gradient Output buffer of getNumVariables() positions: derivatives with respect to
+   *     pu0..puK followed by qi0..qiK
+   * @return Value of the function
+   */
+  public double eval(
+      double[] p, int pu, double[] q, int qi, double[] registers, double[] gradient) {
+    double value = this.kernel.eval(p, pu, q, qi, registers);
+    for (int k = 0; k < this.numVariables; k++) {
+      gradient[k] = registers[this.kernel.getOutput(1 + k)];
+    }
+    return value;
+  }
+}
@@ -0,0 +1,433 @@
+package gpmf.gp.treeCompiler;
+
+import gpmf.gp.treeGenerator.Tree;
+import gpmf.gp.treeGenerator.nodes.Leaf;
+import gpmf.gp.treeGenerator.nodes.Node;
+import gpmf.gp.treeGenerator.nodes.Statement;
+
+/**
+ * Static interval analysis of the prediction of a tree when every factor lies in a given range. The
+ * simplified tree is evaluated on intervals following the same rules as Statement.getPrefix: the
+ * first assignment computes op(One, expr) and every following one op(expr, result). Expressions
+ * follow the semantics of the compiled kernels, where pow and log of values close to zero are NaN,
+ * and conditions the semantics of Node.eval. Both branches of the conditions that cannot be
+ * decided on the intervals are analyzed.
+ *
+ * <p>A tree is UNSTABLE when its prediction is NaN or infinite for every value of the factors, so
+ * its training is bound to fail, and RISKY when it is NaN or infinite for some of them, like the
+ * inverse or the logarithm of an interval that contains zero or the exponential of large values.
+ */
+public class IntervalAnalyzer {
+
+  /** Stability of the prediction of a tree, from the safest to the least safe */
+  public enum Stability {
+    STABLE,
+    RISKY,
+    UNSTABLE
+  }
+
+  /** Outcomes of a condition, TRUE means that ConditionExpression.eval returns 0.0 */
+  private static final int TRUE = 0;
+
+  private static final int FALSE = 1;
+  private static final int UNKNOWN = 2;
+
+  private IntervalAnalyzer() {}
+
+  /**
+   * Analyzes a tree
+   *
+   * @param tree Tree to analyze
+   * @param lower Lower bound of every factor
+   * @param upper Upper bound of every factor
+   * @return Stability of the prediction of the tree
+   */
+  public static Stability analyze(Tree tree, double lower, double upper) {
+    Interval factors = new Interval(lower, upper, false);
+    State state = run(TreeSimplifier.simplify(tree).getRoot(), new State(true, null), factors);
+
+    // without any assignment the prefix is empty and cannot be compiled
+    if (state.result == null) return Stability.UNSTABLE;
+
+    Interval result = state.result;
+    if (result.isEmpty() || (result.lo == result.hi && Double.isInfinite(result.lo))) {
+      return Stability.UNSTABLE;
+    }
+    if (state.unassigned || result.nan || Double.isInfinite(result.lo)) return Stability.RISKY;
+    return Double.isInfinite(result.hi) ? Stability.RISKY : Stability.STABLE;
+  }
+
+  /** Runs a statement chain */
+  private static State run(Node node, State state, Interval factors) {
+    while (node instanceof Statement) {
+      Statement statement = (Statement) node;
+      if (statement.getNodeType().equals("AssignStmt")) {
+        if (statement.getRightNode() != null) {
+          String operator = statement.getOperator().getValue();
+          Interval expr = expression(statement.getRightNode(), factors, false);
+
+          Interval result = null;
+          if (state.unassigned) result = binary(operator, Interval.point(1.0), expr);
+          if (state.result != null) {
+            result = Interval.hull(result, binary(operator, expr, state.result));
+          }
+          state = new State(false, result);
+        }
+      } else if (statement.getNodeType().equals("IFStmt")
+          && statement.getConditionNode() != null) {
+        int outcome = condition(statement.getConditionNode(), factors);
+        State taken = state;
+        State other = state;
+        if (outcome != FALSE && statement.getLeftNode() != null) {
+          taken = run(statement.getLeftNode(), state, factors);
+        }
+        if (outcome != TRUE && statement.getRightNode() != null) {
+          other = run(statement.getRightNode(), state, factors);
+        }
+        if (outcome == TRUE) state = taken;
+        else if (outcome == FALSE) state = other;
+        else state = State.merge(taken, other);
+      }
+      node = statement.getNextNode();
+    }
+    return state;
+  }
+
+  /** Outcome of a condition, following ConditionExpression.eval */
+  private static int condition(Node node, Interval factors) {
+    if (node.getNodeClass().equals("Expression")) {
+      Interval value = expression(node, factors, true);
+      return equalsTo(value, 0.0);
+    }
+
+    switch (node.getNodeType()) {
+      case "ComparisonExpression":
+        {
+          if (node.getLeftNode() == null || node.getRightNode() == null) return FALSE;
+          Interval left = expression(node.getLeftNode(), factors, true);
+          Interval right = expression(node.getRightNode(), factors, true);
+          return compare(node.getOperator().getValue(), left, right);
+        }
+      case "NegationExpression":
+        {
+          if (node.getRightNode() == null) return FALSE;
+          Node arg = node.getRightNode();
+          if (arg.getNodeClass().equals("Expression")) {
+            return equalsTo(expression(arg, factors, true), 1.0);
+          }
+          // the argument evaluates to 1.0 when its condition is false
+          int outcome = condition(arg, factors);
+          return outcome == UNKNOWN ? UNKNOWN : 1 - outcome;
+        }
+      default:
+        // ConditionExpression.eval does not match MultiConditionExpression, so it is always false
+        return FALSE;
+    }
+  }
+
+  /** Whether a value is equal to a constant */
+  private static int equalsTo(Interval value, double constant) {
+    if (value.isEmpty() || constant < value.lo || constant > value.hi) return FALSE;
+    return value.lo == value.hi && !value.nan ? TRUE : UNKNOWN;
+  }
+
+  private static int compare(String operator, Interval left, Interval right) {
+    // comparisons with NaN are false
+    if (left.isEmpty() || right.isEmpty()) return FALSE;
+
+    int outcome;
+    switch (operator) {
+      case "<":
+        outcome = left.hi < right.lo ? TRUE : left.lo >= right.hi ? FALSE : UNKNOWN;
+        break;
+      case ">":
+        outcome = left.lo > right.hi ? TRUE : left.hi <= right.lo ? FALSE : UNKNOWN;
+        break;
+      case "<=":
+        outcome = left.hi <= right.lo ? TRUE : left.lo > right.hi ? FALSE : UNKNOWN;
+        break;
+      case ">=":
+        outcome = left.lo >= right.hi ? TRUE : left.hi < right.lo ? FALSE : UNKNOWN;
+        break;
+      default:
+        return FALSE;
+    }
+    return outcome == TRUE && (left.nan || right.nan) ? UNKNOWN : outcome;
+  }
+
+  /**
+   * Range of an expression
+   *
+   * @param node Expression node
+   * @param factors Range of the factors
+   * @param inCondition Whether the expression follows the semantics of Node.eval
+   * @return Range of the expression
+   */
+  private static Interval expression(Node node, Interval factors, boolean inCondition) {
+    if (node.getOperator() == null) return Interval.point(0.0);
+
+    String operator = node.getOperator().getValue();
+    switch (node.getNodeType()) {
+      case "ConstantExpression":
+        return leaf(node.getOperator(), factors);
+      case "UnaryExpression":
+        {
+          if (node.getRightNode() == null) return Interval.point(0.0);
+          Interval arg = expression(node.getRightNode(), factors, inCondition);
+          return unary(operator, arg, inCondition);
+        }
+      case "BinaryExpression":
+        {
+          if (node.getLeftNode() == null || node.getRightNode() == null) {
+            return Interval.point(0.0);
+          }
+          // Expression.eval does not match pow, so it evaluates to zero inside conditions
+          if (inCondition && operator.equals("pow")) return Interval.point(0.0);
+          Interval left = expression(node.getLeftNode(), factors, inCondition);
+          Interval right = expression(node.getRightNode(), factors, inCondition);
+          return binary(operator, left, right);
+        }
+      default:
+        return Interval.point(0.0);
+    }
+  }
+
+  private static Interval leaf(Leaf leaf, Interval factors) {
+    switch (leaf.getValue()) {
+      case "One":
+        return Interval.point(1.0);
+      case "Zero":
+        return Interval.point(0.0);
+      case "result":
+        return Interval.ANY;
+      default:
+        return factors;
+    }
+  }
+
+  private static Interval unary(String operator, Interval arg, boolean inCondition) {
+    if (arg.isEmpty()) return arg;
+
+    switch (operator) {
+      case "sin":
+      case "cos":
+        {
+          boolean infinite = Double.isInfinite(arg.lo) || Double.isInfinite(arg.hi);
+          return new Interval(-1.0, 1.0, arg.nan || infinite);
+        }
+      case "atan":
+        return new Interval(Math.atan(arg.lo), Math.atan(arg.hi), arg.nan);
+      case "exp":
+        return new Interval(Math.exp(arg.lo), Math.exp(arg.hi), arg.nan);
+      case "log":
+        return inCondition ? log(arg, 0.0) : log(arg, Term.THRESHOLD);
+      case "inv":
+        return inCondition ? inv(arg, 0.0) : inv(arg, Term.THRESHOLD);
+      default:
+        return Interval.point(0.0);
+    }
+  }
+
+  /** Logarithm of the values not below threshold, smaller ones are NaN */
+  private static Interval log(Interval arg, double threshold) {
+    if (arg.hi < threshold) return Interval.nan();
+    boolean nan = arg.nan || arg.lo < threshold;
+    return new Interval(Math.log(Math.max(arg.lo, threshold)), Math.log(arg.hi), nan);
+  }
+
+  /**
+   * Inverse of the values whose absolute value is not below threshold, smaller ones are NaN. With a
+   * zero threshold the inverse of zero is infinite, as in Node.eval.
+   */
+  private static Interval inv(Interval arg, double threshold) {
+    if (arg.isEmpty()) return arg;
+
+    boolean nan = arg.nan || (threshold > 0.0 && arg.lo < threshold && arg.hi > -threshold);
+    double lo = Double.POSITIVE_INFINITY;
+    double hi = Double.NEGATIVE_INFINITY;
+    // 1 / x is decreasing on each side of zero
+    if (arg.hi >= threshold) {
+      lo = 1.0 / arg.hi;
+      hi = 1.0 / Math.max(arg.lo, threshold);
+    }
+    if (arg.lo < 0.0 && arg.lo <= -threshold) {
+      // Math.min keeps -0.0, whose inverse is -Infinity
+      lo = Math.min(lo, 1.0 / Math.min(arg.hi, -threshold));
+      hi = Math.max(hi, 1.0 / arg.lo);
+    }
+    return new Interval(lo, hi, nan);
+  }
+
+  private static Interval binary(String operator, Interval left, Interval right) {
+    switch (operator) {
+      case "+":
+        return add(left, right);
+      case "-":
+        return add(left, new Interval(-right.hi, -right.lo, right.nan));
+      case "*":
+        return mul(left, right);
+      case "pow":
+        return pow(left, right);
+      default:
+        return Interval.point(0.0);
+    }
+  }
+
+  private static Interval add(Interval a, Interval b) {
+    if (a.isEmpty() || b.isEmpty()) return Interval.nan();
+
+    boolean nan = a.nan || b.nan;
+    double lo = a.lo + b.lo;
+    double hi = a.hi + b.hi;
+    // inf - inf
+    if (Double.isNaN(lo) || Double.isNaN(hi)) nan = true;
+    if (Double.isNaN(lo)) lo = Double.NEGATIVE_INFINITY;
+    if (Double.isNaN(hi)) hi = Double.POSITIVE_INFINITY;
+    return new Interval(lo, hi, nan);
+  }
+
+  private static Interval mul(Interval a, Interval b) {
+    if (a.isEmpty() || b.isEmpty()) return Interval.nan();
+
+    boolean nan = a.nan || b.nan;
+    double lo = Double.POSITIVE_INFINITY;
+    double hi = Double.NEGATIVE_INFINITY;
+    for (double x : new double[] {a.lo, a.hi}) {
+      for (double y : new double[] {b.lo, b.hi}) {
+        double product = x * y;
+        // 0 * inf
+        if (Double.isNaN(product)) {
+          nan = true;
+          product = 0.0;
+        }
+        lo = Math.min(lo, product);
+        hi = Math.max(hi, product);
+      }
+    }
+    return new Interval(lo, hi, nan);
+  }
+
+  /** Power following Term.pow */
+  private static Interval pow(Interval base, Interval exponent) {
+    if (exponent.lo == 0.0 && exponent.hi == 0.0) {
+      return new Interval(1.0, 1.0, exponent.nan);
+    }
+    if (exponent.isEmpty()) return Interval.nan();
+    // a zero exponent gives 1 even for a NaN base
+    if (base.isEmpty()) {
+      return exponent.lo <= 0.0 && exponent.hi >= 0.0 ? new Interval(1.0, 1.0, true) : base;
+    }
+
+    boolean nan = base.nan || exponent.nan;
+    if (exponent.lo == exponent.hi && exponent.lo == Math.rint(exponent.lo)) {
+      return pown(base, exponent.lo, nan);
+    }
+
+    if (base.lo < 0.0) {
+      // negative bases are NaN for every exponent but the integer ones
+      if (base.hi < 0.0 && exponent.lo == exponent.hi) return Interval.nan();
+      return new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+    }
+
+    // x^y is monotonic in each argument on both sides of x = 1, so the extremes lie on the corners
+    // or on the lines x = 1 and y = 0, where it is 1
+    double lo = Double.POSITIVE_INFINITY;
+    double hi = Double.NEGATIVE_INFINITY;
+    if ((base.lo <= 1.0 && base.hi >= 1.0) || (exponent.lo <= 0.0 && exponent.hi >= 0.0)) {
+      lo = 1.0;
+      hi = 1.0;
+    }
+    for (double x : new double[] {base.lo, base.hi}) {
+      for (double y : new double[] {exponent.lo, exponent.hi}) {
+        double power = Math.pow(x, y);
+        // 1^inf
+        if (Double.isNaN(power)) {
+          nan = true;
+          continue;
+        }
+        lo = Math.min(lo, power);
+        hi = Math.max(hi, power);
+      }
+    }
+    if (exponent.lo < 0.0 && base.lo < Term.THRESHOLD) {
+      nan = true;
+      hi = Double.POSITIVE_INFINITY;
+    }
+    return new Interval(lo, hi, nan);
+  }
+
+  /** Power to an integer exponent */
+  private static Interval pown(Interval base, double exponent, boolean nan) {
+    if (exponent < 0.0) {
+      Interval inverse = inv(base, Term.THRESHOLD);
+      if (inverse.isEmpty()) return inverse;
+      return pown(inverse, -exponent, nan || inverse.nan);
+    }
+
+    double a = Math.pow(base.lo, exponent);
+    double b = Math.pow(base.hi, exponent);
+    if (exponent % 2 != 0) return new Interval(Math.min(a, b), Math.max(a, b), nan);
+
+    double lo = base.lo <= 0.0 && base.hi >= 0.0 ? 0.0 : Math.min(a, b);
+    return new Interval(lo, Math.max(a, b), nan);
+  }
+
+  /**
+   * Private inner class with a range of values and whether NaN is among them. An interval whose
+   * lower bound is greater than its upper bound only holds NaN.
+   */
+  private static class Interval {
+
+    private static final Interval ANY =
+        new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+
+    private final double lo;
+    private final double hi;
+    private final boolean nan;
+
+    private Interval(double lo, double hi, boolean nan) {
+      this.lo = lo;
+      this.hi = hi;
+      this.nan = nan;
+    }
+
+    static Interval point(double value) {
+      return new Interval(value, value, false);
+    }
+
+    static Interval nan() {
+      return new Interval(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, true);
+    }
+
+    boolean isEmpty() {
+      return this.lo > this.hi;
+    }
+
+    static Interval hull(Interval a, Interval b) {
+      if (a == null) return b;
+      if (b == null) return a;
+      return new Interval(Math.min(a.lo, b.lo), Math.max(a.hi, b.hi), a.nan || b.nan);
+    }
+  }
+
+  /**
+   * Private inner class with the range of the result after some statements, and whether no
+   * assignment may have run yet
+   */
+  private static class State {
+
+    private final boolean unassigned;
+
+    /** Range of the result, null if no assignment has run in any branch */
+    private final Interval result;
+
+    private State(boolean unassigned, Interval result) {
+      this.unassigned = unassigned;
+      this.result = result;
+    }
+
+    static State merge(State a, State b) {
+      return new State(a.unassigned || b.unassigned, Interval.hull(a.result, b.result));
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package gpmf.gp.treeCompiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Straight-line program compiled from one or more Terms. Every instruction writes one register, so
+ * the evaluation is a single pass over primitive arrays reading factors by slot from the user and
+ * item rows. Identical instructions are emitted only once, so subexpressions shared between the
+ * compiled terms are computed once per evaluation. Kernels are immutable and can be shared between
+ * threads, each caller supplies its own registers buffer of at least {@link #getNumRegisters()}
+ * positions.
+ */
+public class Kernel {
+
+  /** Scope of registers that do not depend on any factor */
+  public static final int CONSTANT = 0;
+
+  /** Scope of registers that only depend on pu factors */
+  public static final int USER = 1;
+
+  /** Scope of registers that only depend on qi factors */
+  public static final int ITEM = 2;
+
+  /** Scope of registers that depend on both pu and qi factors */
+  public static final int MIXED = USER | ITEM;
+
+  /** Operation of each instruction, one of the Term kinds */
+  final int[] ops;
+
+  /** First operand register, or factor index for PU and QI loads */
+  final int[] left;
+
+  /** Second operand register */
+  final int[] right;
+
+  /** Constant value or integer exponent of each instruction */
+  final double[] values;
+
+  /** Register that holds the result of the first term */
+  final int output;
+
+  /** Register that holds the result of each term */
+  final int[] outputs;
+
+  /** Scope of each register: CONSTANT, USER, ITEM or MIXED */
+  final int[] scopes;
+
+  private Kernel(int[] ops, int[] left, int[] right, double[] values, int[] outputs) {
+    this.ops = ops;
+    this.left = left;
+    this.right = right;
+    this.values = values;
+    this.output = outputs[0];
+    this.outputs = outputs;
+
+    this.scopes = new int[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      switch (ops[i]) {
+        case Term.ZERO:
+        case Term.ONE:
+        case Term.CONST:
+          this.scopes[i] = CONSTANT;
+          break;
+        case Term.PU:
+          this.scopes[i] = USER;
+          break;
+        case Term.QI:
+          this.scopes[i] = ITEM;
+          break;
+        case Term.ADD:
+        case Term.SUB:
+        case Term.MUL:
+        case Term.POW:
+          this.scopes[i] = this.scopes[left[i]] | this.scopes[right[i]];
+          break;
+        default:
+          this.scopes[i] = this.scopes[left[i]];
+      }
+    }
+  }
+
+  /**
+   * Compiles terms into a single kernel. Structurally equal subterms are computed only once.
+   *
+   * @param terms Terms to compile, the first one is the result of eval
+   * @return Compiled kernel
+   */
+  public static Kernel compile(Term... terms) {
+    Builder builder = new Builder();
+    int[] outputs = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) outputs[i] = builder.emit(terms[i]);
+    return builder.build(outputs);
+  }
+
+  public int getNumRegisters() {
+    return this.ops.length;
+  }
+
+  public int getNumOutputs() {
+    return this.outputs.length;
+  }
+
+  /**
+   * Register that holds the result of a compiled term after eval
+   *
+   * @param term Index of the term
+   * @return Register index
+   */
+  public int getOutput(int term) {
+    return this.outputs[term];
+  }
+
+  /**
+   * Classifies a register by the factors it depends on
+   *
+   * @param register Register index
+   * @return CONSTANT, USER, ITEM or MIXED
+   */
+  public int getScope(int register) {
+    return this.scopes[register];
+  }
+
+  /**
+   * Evaluates the kernel
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @return Value of the compiled expression
+   */
+  public double eval(double[] p, int pu, double[] q, int qi, double[] registers) {
+    for (int i = 0; i < this.ops.length; i++) {
+      double res;
+      switch (this.ops[i]) {
+        case Term.ZERO:
+          res = 0.0;
+          break;
+        case Term.ONE:
+          res = 1.0;
+          break;
+        case Term.CONST:
+          res = this.values[i];
+          break;
+        case Term.PU:
+          res = p[pu + this.left[i]];
+          break;
+        case Term.QI:
+          res = q[qi + this.left[i]];
+          break;
+        case Term.ADD:
+          res = registers[this.left[i]] + registers[this.right[i]];
+          break;
+        case Term.SUB:
+          res = registers[this.left[i]] - registers[this.right[i]];
+          break;
+        case Term.MUL:
+          res = registers[this.left[i]] * registers[this.right[i]];
+          break;
+        case Term.NEG:
+          res = -registers[this.left[i]];
+          break;
+        case Term.POW:
+          res = Term.pow(registers[this.left[i]], registers[this.right[i]]);
+          break;
+        case Term.POWN:
+          res = Term.pow(registers[this.left[i]], this.values[i]);
+          break;
+        case Term.LOG:
+          res = Term.log(registers[this.left[i]]);
+          break;
+        case Term.EXP:
+          res = Math.exp(registers[this.left[i]]);
+          break;
+        case Term.SIN:
+          res = Math.sin(registers[this.left[i]]);
+          break;
+        case Term.COS:
+          res = Math.cos(registers[this.left[i]]);
+          break;
+        case Term.ATAN:
+          res = Math.atan(registers[this.left[i]]);
+          break;
+        default:
+          res = Double.NaN;
+      }
+      registers[i] = res;
+    }
+    return registers[this.output];
+  }
+
+  /** Private inner class used to lower terms into instructions */
+  private static class Builder {
+
+    private final List<int[]> instructions = new ArrayList<>();
+    private final List<Double> constants = new ArrayList<>();
+    private final Map<Term, Integer> emitted = new IdentityHashMap<>();
+    private final Map<String, Integer> numbered = new HashMap<>();
+
+    int emit(Term term) {
+      Integer register = this.emitted.get(term);
+      if (register != null) return register;
+
+      int res;
+      switch (term.getKind()) {
+        case Term.ZERO:
+        case Term.ONE:
+        case Term.CONST:
+          res = this.add(term.getKind(), 0, 0, term.getValue());
+          break;
+        case Term.PU:
+        case Term.QI:
+          res = this.add(term.getKind(), term.getIndex(), 0, 0.0);
+          break;
+        case Term.POW:
+          // pow with a literal Zero or One exponent never evaluates the exponent
+          if (term.getRight().getKind() == Term.ZERO) {
+            res = this.add(Term.ONE, 0, 0, 1.0);
+          } else if (term.getRight().getKind() == Term.ONE) {
+            res = this.emit(term.getLeft());
+          } else {
+            int base = this.emit(term.getLeft());
+            int exponent = this.emit(term.getRight());
+            res = this.add(Term.POW, base, exponent, 0.0);
+          }
+          break;
+        case Term.POWN:
+          res = this.add(Term.POWN, this.emit(term.getLeft()), 0, term.getValue());
+          break;
+        case Term.ADD:
+        case Term.SUB:
+        case Term.MUL:
+          {
+            int l = this.emit(term.getLeft());
+            int r = this.emit(term.getRight());
+            res = this.add(term.getKind(), l, r, 0.0);
+          }
+          break;
+        default:
+          res = this.add(term.getKind(), this.emit(term.getLeft()), 0, 0.0);
+      }
+
+      this.emitted.put(term, res);
+      return res;
+    }
+
+    private int add(int op, int left, int right, double value) {
+      String key = op + ":" + left + ":" + right + ":" + Double.doubleToLongBits(value);
+      Integer register = this.numbered.get(key);
+      if (register != null) return register;
+
+      this.instructions.add(new int[] {op, left, right});
+      this.constants.add(value);
+      this.numbered.put(key, this.instructions.size() - 1);
+      return this.instructions.size() - 1;
+    }
+
+    Kernel build(int[] outputs) {
+      int size = this.instructions.size();
+      int[] ops = new int[size];
+      int[] left = new int[size];
+      int[] right = new int[size];
+      double[] values = new double[size];
+      for (int i = 0; i < size; i++) {
+        ops[i] = this.instructions.get(i)[0];
+        left[i] = this.instructions.get(i)[1];
+        right[i] = this.instructions.get(i)[2];
+        values[i] = this.constants.get(i);
+      }
+      return new Kernel(ops, left, right, values, outputs);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package gpmf.gp.treeCompiler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of compiled kernels keyed by the canonical prefix notation of the expression
+ * and the number of factors. The same expression appears in every cross-validation fold, in the
+ * elites retrained each generation and in crossover clones, so it is parsed and differentiated only
+ * once per run. The cache is bounded and evicts the least recently used kernels.
+ */
+public class KernelCache {
+
+  /** Default maximum number of cached kernels */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  private static int maxSize = DEFAULT_MAX_SIZE;
+
+  private static final Map<String, TreeKernel> kernels =
+      new LinkedHashMap<String, TreeKernel>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TreeKernel> eldest) {
+          return this.size() > maxSize;
+        }
+      };
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private KernelCache() {}
+
+  /**
+   * Returns the compiled kernel of an expression, compiling it on a cache miss
+   *
+   * @param prefix Expression in prefix notation
+   * @param numFactors Number of factors
+   * @return Compiled kernel
+   * @throws IllegalArgumentException if the expression is malformed
+   */
+  public static TreeKernel get(String prefix, int numFactors) {
+    String key = numFactors + ":" + TreeCompiler.canonicalize(prefix);
+
+    TreeKernel kernel;
+    synchronized (kernels) {
+      kernel = kernels.get(key);
+    }
+    if (kernel != null) {
+      hits.incrementAndGet();
+      return kernel;
+    }
+
+    misses.incrementAndGet();
+    kernel = TreeCompiler.compile(prefix, numFactors);
+
+    synchronized (kernels) {
+      TreeKernel previous = kernels.get(key);
+      if (previous != null) return previous;
+      kernels.put(key, kernel);
+    }
+    return kernel;
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  public static int size() {
+    synchronized (kernels) {
+      return kernels.size();
+    }
+  }
+
+  public static int getMaxSize() {
+    return maxSize;
+  }
+
+  public static void setMaxSize(int maxSize) {
+    synchronized (kernels) {
+      KernelCache.maxSize = maxSize;
+    }
+  }
+
+  public static void clear() {
+    synchronized (kernels) {
+      kernels.clear();
+    }
+    hits.set(0);
+    misses.set(0);
+  }
+}
@@ -0,0 +1,175 @@
+package gpmf.gp.treeCompiler;
+
+import gpmf.gp.treeGenerator.Tree;
+import gpmf.gp.treeGenerator.nodes.Node;
+import gpmf.gp.treeGenerator.nodes.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Piecewise compiled form of a tree. The conditions of the IFStmt nodes are evaluated natively on
+ * the bound factors and the outcomes of the reachable ones form a branch signature. Each signature
+ * is compiled once into its own TreeKernel, so trees with conditions no longer rebuild and compare
+ * their prefix notation for every rating.
+ *
+ * <p>The kernel works on a private clone of the tree because guards are evaluated by binding
+ * factors into it. Instances are not thread safe.
+ */
+public class PiecewiseKernel {
+
+  /** Maximum number of guards that fit in a signature */
+  private static final int MAX_GUARDS = 63;
+
+  /** Private clone of the tree */
+  private final Tree tree;
+
+  /** Number of factors */
+  private final int numFactors;
+
+  /** Guards of the top level statement chain */
+  private final Block root;
+
+  /** Number of guards of the tree */
+  private final int numGuards;
+
+  /** Signatures of the compiled branches, open addressing table */
+  private long[] signatures = new long[8];
+
+  /** Kernel of each signature */
+  private TreeKernel[] kernels = new TreeKernel[8];
+
+  /** Number of compiled branches */
+  private int size = 0;
+
+  public PiecewiseKernel(Tree tree, int numFactors) {
+    this.tree = tree.clone();
+    this.numFactors = numFactors;
+
+    int[] counter = new int[1];
+    this.root = Block.build(this.tree.getRoot(), counter);
+    this.numGuards = counter[0];
+  }
+
+  public int getNumGuards() {
+    return this.numGuards;
+  }
+
+  public int getNumBranches() {
+    return this.size;
+  }
+
+  /**
+   * Selects the kernel of the branch taken for the given factors, compiling it the first time the
+   * branch is reached
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @return Kernel of the taken branch
+   * @throws IllegalArgumentException if the expression of the branch is malformed
+   */
+  public TreeKernel select(double[] p, int pu, double[] q, int qi) {
+    if (this.numGuards == 0 && this.size == 1) return this.kernels[this.slot(0L)];
+
+    this.tree.bindFactors(p, pu, q, qi);
+
+    if (this.numGuards > MAX_GUARDS) {
+      this.tree.reset();
+      return KernelCache.get(this.tree.getPrefix(), this.numFactors);
+    }
+
+    long signature = this.root == null ? 0L : this.root.signature();
+    int slot = this.slot(signature);
+    if (this.kernels[slot] == null) {
+      this.tree.reset();
+      TreeKernel kernel = KernelCache.get(this.tree.getPrefix(), this.numFactors);
+      this.put(signature, kernel);
+      return kernel;
+    }
+    return this.kernels[slot];
+  }
+
+  private int slot(long signature) {
+    int mask = this.signatures.length - 1;
+    int slot = Long.hashCode(signature * 0x9E3779B97F4A7C15L) & mask;
+    while (this.kernels[slot] != null && this.signatures[slot] != signature) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void put(long signature, TreeKernel kernel) {
+    if ((this.size + 1) * 2 > this.signatures.length) {
+      long[] oldSignatures = this.signatures;
+      TreeKernel[] oldKernels = this.kernels;
+      this.signatures = new long[oldSignatures.length * 2];
+      this.kernels = new TreeKernel[oldKernels.length * 2];
+      for (int i = 0; i < oldKernels.length; i++) {
+        if (oldKernels[i] != null) {
+          int slot = this.slot(oldSignatures[i]);
+          this.signatures[slot] = oldSignatures[i];
+          this.kernels[slot] = oldKernels[i];
+        }
+      }
+    }
+    int slot = this.slot(signature);
+    this.signatures[slot] = signature;
+    this.kernels[slot] = kernel;
+    this.size++;
+  }
+
+  /**
+   * Private inner class with the IFStmt nodes of a statement chain. It follows the same control
+   * flow than Statement.getPrefix, so only the guards that are actually reached get evaluated.
+   */
+  private static class Block {
+
+    private final Node[] conditions;
+    private final int[] bits;
+    private final Block[] thenBlocks;
+    private final Block[] elseBlocks;
+
+    private Block(List<Node> conditions, List<Integer> bits, List<Block> thens, List<Block> elses) {
+      this.conditions = conditions.toArray(new Node[0]);
+      this.bits = new int[bits.size()];
+      for (int i = 0; i < this.bits.length; i++) this.bits[i] = bits.get(i);
+      this.thenBlocks = thens.toArray(new Block[0]);
+      this.elseBlocks = elses.toArray(new Block[0]);
+    }
+
+    static Block build(Node node, int[] counter) {
+      List<Node> conditions = new ArrayList<>();
+      List<Integer> bits = new ArrayList<>();
+      List<Block> thens = new ArrayList<>();
+      List<Block> elses = new ArrayList<>();
+
+      while (node instanceof Statement) {
+        Statement statement = (Statement) node;
+        if (statement.getNodeType().equals("IFStmt") && statement.getConditionNode() != null) {
+          conditions.add(statement.getConditionNode());
+          bits.add(counter[0]++);
+          thens.add(build(statement.getLeftNode(), counter));
+          elses.add(build(statement.getRightNode(), counter));
+        }
+        node = statement.getNextNode();
+      }
+
+      return conditions.isEmpty() ? null : new Block(conditions, bits, thens, elses);
+    }
+
+    long signature() {
+      long signature = 0L;
+      for (int i = 0; i < this.conditions.length; i++) {
+        if (this.conditions[i].eval() == 0.0) {
+          signature |= 1L << this.bits[i];
+          if (this.thenBlocks[i] != null) signature |= this.thenBlocks[i].signature();
+        } else if (this.elseBlocks[i] != null) {
+          signature |= this.elseBlocks[i].signature();
+        }
+      }
+      return signature;
+    }
+  }
+}
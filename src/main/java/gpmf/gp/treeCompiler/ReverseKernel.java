@@ -0,0 +1,167 @@
+package gpmf.gp.treeCompiler;
+
+import java.util.Arrays;
+
+/**
+ * Reverse-mode automatic differentiation of a Kernel. The registers filled by the forward pass are
+ * the tape, and a single backward pass over it accumulates the adjoints of every register, giving
+ * all the pu and qi partial derivatives in time proportional to the kernel size regardless of the
+ * number of factors.
+ *
+ * <p>Adjoints are only propagated through registers that depend on some factor. Unlike DualKernel,
+ * the terms that Term.diff keeps for variables an expression does not depend on are not
+ * reproduced, so degenerate gradients that are NaN in forward mode may be finite here.
+ */
+public class ReverseKernel {
+
+  /** Kernel with the instructions to differentiate */
+  private final Kernel kernel;
+
+  /** Number of factors */
+  private final int numFactors;
+
+  /** Whether each register depends on any factor */
+  private final boolean[] active;
+
+  public ReverseKernel(Kernel kernel, int numFactors) {
+    this.kernel = kernel;
+    this.numFactors = numFactors;
+
+    int[] ops = kernel.ops;
+    this.active = new boolean[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      switch (ops[i]) {
+        case Term.ZERO:
+        case Term.ONE:
+        case Term.CONST:
+          this.active[i] = false;
+          break;
+        case Term.PU:
+        case Term.QI:
+          this.active[i] = true;
+          break;
+        case Term.ADD:
+        case Term.SUB:
+        case Term.MUL:
+        case Term.POW:
+          this.active[i] = this.active[kernel.left[i]] || this.active[kernel.right[i]];
+          break;
+        case Term.POWN:
+          this.active[i] = this.active[kernel.left[i]] && kernel.values[i] != 0.0;
+          break;
+        default:
+          this.active[i] = this.active[kernel.left[i]];
+      }
+    }
+  }
+
+  public int getNumRegisters() {
+    return this.kernel.getNumRegisters();
+  }
+
+  public int getNumVariables() {
+    return 2 * this.numFactors;
+  }
+
+  /**
+   * Evaluates the kernel and its gradient
+   *
+   * @param p User factors array
+   * @param pu Offset of the user row inside p
+   * @param q Item factors array
+   * @param qi Offset of the item row inside q
+   * @param registers Scratch buffer of at least getNumRegisters() positions
+   * @param adjoints Scratch buffer of at least getNumRegisters() positions
+   * @param gradient Output buffer of getNumVariables() positions: derivatives with respect to
+   *     pu0..puK followed by qi0..qiK
+   * @return Value of the compiled expression
+   */
+  public double eval(
+      double[] p,
+      int pu,
+      double[] q,
+      int qi,
+      double[] registers,
+      double[] adjoints,
+      double[] gradient) {
+    double value = this.kernel.eval(p, pu, q, qi, registers);
+
+    int[] ops = this.kernel.ops;
+    int[] left = this.kernel.left;
+    int[] right = this.kernel.right;
+    double[] values = this.kernel.values;
+    boolean[] active = this.active;
+
+    Arrays.fill(gradient, 0, 2 * this.numFactors, 0.0);
+    Arrays.fill(adjoints, 0, ops.length, 0.0);
+    adjoints[this.kernel.output] = 1.0;
+
+    for (int i = this.kernel.output; i >= 0; i--) {
+      if (!active[i]) continue;
+
+      double adjoint = adjoints[i];
+      int l = left[i];
+      int r = right[i];
+
+      switch (ops[i]) {
+        case Term.PU:
+          gradient[l] += adjoint;
+          break;
+        case Term.QI:
+          gradient[this.numFactors + l] += adjoint;
+          break;
+        case Term.ADD:
+          if (active[l]) adjoints[l] += adjoint;
+          if (active[r]) adjoints[r] += adjoint;
+          break;
+        case Term.SUB:
+          if (active[l]) adjoints[l] += adjoint;
+          if (active[r]) adjoints[r] -= adjoint;
+          break;
+        case Term.MUL:
+          if (active[l]) adjoints[l] += adjoint * registers[r];
+          if (active[r]) adjoints[r] += adjoint * registers[l];
+          break;
+        case Term.NEG:
+          adjoints[l] -= adjoint;
+          break;
+        case Term.POW:
+          {
+            double base = registers[l];
+            double exponent = registers[r];
+            if (active[l]) adjoints[l] += adjoint * (exponent * Term.pow(base, exponent - 1.0));
+            if (active[r]) adjoints[r] += adjoint * (Term.log(base) * registers[i]);
+          }
+          break;
+        case Term.POWN:
+          {
+            double x = registers[l];
+            double exponent = values[i];
+            if (exponent == 1.0) adjoints[l] += adjoint;
+            else if (exponent == 2.0) adjoints[l] += adjoint * (2.0 * x);
+            else adjoints[l] += adjoint * (exponent * Term.pow(x, exponent - 1.0));
+          }
+          break;
+        case Term.LOG:
+          adjoints[l] += adjoint * Term.pow(registers[l], -1.0);
+          break;
+        case Term.EXP:
+          adjoints[l] += adjoint * registers[i];
+          break;
+        case Term.SIN:
+          adjoints[l] += adjoint * Math.cos(registers[l]);
+          break;
+        case Term.COS:
+          adjoints[l] -= adjoint * Math.sin(registers[l]);
+          break;
+        case Term.ATAN:
+          adjoints[l] += adjoint * Term.pow(1.0 + Term.pow(registers[l], 2.0), -1.0);
+          break;
+        default:
+          break;
+      }
+    }
+
+    return value;
+  }
+}
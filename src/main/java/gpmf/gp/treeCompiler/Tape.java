@@ -0,0 +1,70 @@
+package gpmf.gp.treeCompiler;
+
+/**
+ * Per-thread scratch buffers used to evaluate and differentiate kernels. Buffers only grow, so once
+ * a worker thread has evaluated its largest kernel no more memory is allocated per rating.
+ */
+public class Tape {
+
+  private static final ThreadLocal<Tape> tapes = ThreadLocal.withInitial(Tape::new);
+
+  /** Values of the registers */
+  private double[] registers = new double[0];
+
+  /** Forward-mode tangents of the registers */
+  private double[] tangents = new double[0];
+
+  /** Reverse-mode adjoints of the registers */
+  private double[] adjoints = new double[0];
+
+  /** Gradient with respect to pu0..puK followed by qi0..qiK */
+  private double[] gradient = new double[0];
+
+  private Tape() {}
+
+  /**
+   * Returns the tape of the current thread
+   *
+   * @return Tape instance
+   */
+  public static Tape get() {
+    return tapes.get();
+  }
+
+  /**
+   * Grows the buffers so they fit the given kernel
+   *
+   * @param kernel Kernel to evaluate
+   * @return This tape
+   */
+  public Tape ensure(TreeKernel kernel) {
+    int numRegisters = kernel.getNumRegisters();
+    if (this.registers.length < numRegisters) {
+      this.registers = new double[numRegisters];
+      this.adjoints = new double[numRegisters];
+    }
+    if (this.tangents.length < kernel.getNumTangents()) {
+      this.tangents = new double[kernel.getNumTangents()];
+    }
+    if (this.gradient.length < 2 * kernel.getNumFactors()) {
+      this.gradient = new double[2 * kernel.getNumFactors()];
+    }
+    return this;
+  }
+
+  public double[] getRegisters() {
+    return this.registers;
+  }
+
+  public double[] getTangents() {
+    return this.tangents;
+  }
+
+  public double[] getAdjoints() {
+    return this.adjoints;
+  }
+
+  public double[] getGradient() {
+    return this.gradient;
+  }
+}
@@ -0,0 +1,255 @@
+package gpmf.gp.treeCompiler;
+
+/**
+ * Immutable symbolic expression used as intermediate representation between the prefix notation
+ * of a tree and its compiled kernels. Differentiation rules mirror the ones of the sym-derivation
+ * library, so a compiled kernel evaluates the same expression the SymFunction used to evaluate.
+ */
+public class Term {
+
+  public static final int ZERO = 0;
+  public static final int ONE = 1;
+  public static final int CONST = 2;
+  public static final int PU = 3;
+  public static final int QI = 4;
+  public static final int ADD = 5;
+  public static final int SUB = 6;
+  public static final int MUL = 7;
+  public static final int NEG = 8;
+  public static final int POW = 9;
+  public static final int POWN = 10;
+  public static final int LOG = 11;
+  public static final int EXP = 12;
+  public static final int SIN = 13;
+  public static final int COS = 14;
+  public static final int ATAN = 15;
+
+  /** Values whose absolute value is below this threshold are considered zero by pow and log */
+  public static final double THRESHOLD = 1e-14;
+
+  private static final Term ZERO_TERM = new Term(ZERO, null, null, 0.0, 0);
+  private static final Term ONE_TERM = new Term(ONE, null, null, 1.0, 0);
+
+  /** Kind of the term */
+  private final int kind;
+
+  /** First argument (base of a power) */
+  private final Term left;
+
+  /** Second argument (exponent of a power) */
+  private final Term right;
+
+  /** Value of a constant or integer exponent of a numeric power */
+  private final double value;
+
+  /** Factor index of a pu or qi variable */
+  private final int index;
+
+  private Term(int kind, Term left, Term right, double value, int index) {
+    this.kind = kind;
+    this.left = left;
+    this.right = right;
+    this.value = value;
+    this.index = index;
+  }
+
+  public static Term zero() {
+    return ZERO_TERM;
+  }
+
+  public static Term one() {
+    return ONE_TERM;
+  }
+
+  public static Term constant(double value) {
+    return new Term(CONST, null, null, value, 0);
+  }
+
+  public static Term pu(int index) {
+    return new Term(PU, null, null, 0.0, index);
+  }
+
+  public static Term qi(int index) {
+    return new Term(QI, null, null, 0.0, index);
+  }
+
+  public static Term binary(int kind, Term left, Term right) {
+    return new Term(kind, left, right, 0.0, 0);
+  }
+
+  public static Term unary(int kind, Term arg) {
+    return new Term(kind, arg, null, 0.0, 0);
+  }
+
+  public static Term pown(Term arg, int exponent) {
+    return new Term(POWN, arg, null, exponent, 0);
+  }
+
+  public static Term inv(Term arg) {
+    return pown(arg, -1);
+  }
+
+  public int getKind() {
+    return this.kind;
+  }
+
+  public Term getLeft() {
+    return this.left;
+  }
+
+  public Term getRight() {
+    return this.right;
+  }
+
+  public double getValue() {
+    return this.value;
+  }
+
+  public int getIndex() {
+    return this.index;
+  }
+
+  public boolean isZero() {
+    return this.kind == ZERO;
+  }
+
+  /**
+   * Computes the symbolic partial derivative of the term
+   *
+   * @param variableKind PU or QI
+   * @param variableIndex Factor index of the variable
+   * @return Derivative term
+   */
+  public Term diff(int variableKind, int variableIndex) {
+    switch (this.kind) {
+      case PU:
+      case QI:
+        return (this.kind == variableKind && this.index == variableIndex) ? one() : zero();
+      case ADD:
+        {
+          Term d1 = this.left.diff(variableKind, variableIndex);
+          Term d2 = this.right.diff(variableKind, variableIndex);
+          if (d1.isZero() && d2.isZero()) return zero();
+          if (d1.isZero()) return d2;
+          if (d2.isZero()) return d1;
+          return binary(ADD, d1, d2);
+        }
+      case SUB:
+        {
+          Term d1 = this.left.diff(variableKind, variableIndex);
+          Term d2 = this.right.diff(variableKind, variableIndex);
+          if (d1.isZero() && d2.isZero()) return zero();
+          if (d1.isZero()) return unary(NEG, d2);
+          if (d2.isZero()) return d1;
+          return binary(SUB, d1, d2);
+        }
+      case MUL:
+        {
+          Term d1 = this.left.diff(variableKind, variableIndex);
+          Term d2 = this.right.diff(variableKind, variableIndex);
+          if (d1.isZero() && d2.isZero()) return zero();
+          if (d1.isZero()) return binary(MUL, this.left, d2);
+          if (d2.isZero()) return binary(MUL, d1, this.right);
+          return binary(ADD, binary(MUL, d1, this.right), binary(MUL, this.left, d2));
+        }
+      case NEG:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero() ? zero() : unary(NEG, d);
+        }
+      case POW:
+        return this.powDiff(variableKind, variableIndex);
+      case POWN:
+        return this.pownDiff(variableKind, variableIndex);
+      case LOG:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero() ? zero() : binary(MUL, inv(this.left), d);
+        }
+      case EXP:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero() ? zero() : binary(MUL, unary(EXP, this.left), d);
+        }
+      case SIN:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero() ? zero() : binary(MUL, unary(COS, this.left), d);
+        }
+      case COS:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero() ? zero() : unary(NEG, binary(MUL, unary(SIN, this.left), d));
+        }
+      case ATAN:
+        {
+          Term d = this.left.diff(variableKind, variableIndex);
+          return d.isZero()
+              ? zero()
+              : binary(MUL, inv(binary(ADD, one(), pown(this.left, 2))), d);
+        }
+      default:
+        return zero();
+    }
+  }
+
+  private Term powDiff(int variableKind, int variableIndex) {
+    if (this.right.kind == ZERO) return zero();
+    if (this.right.kind == ONE) return this.left.diff(variableKind, variableIndex);
+
+    Term baseDiff = this.left.diff(variableKind, variableIndex);
+    Term powDiff = this.right.diff(variableKind, variableIndex);
+
+    Term basePart =
+        binary(
+            MUL,
+            binary(MUL, this.right, baseDiff),
+            binary(POW, this.left, binary(SUB, this.right, one())));
+    if (powDiff.isZero()) return basePart;
+
+    Term powPart =
+        binary(
+            MUL,
+            binary(MUL, powDiff, unary(LOG, this.left)),
+            binary(POW, this.left, this.right));
+    if (baseDiff.isZero()) return powPart;
+
+    return binary(ADD, powPart, basePart);
+  }
+
+  private Term pownDiff(int variableKind, int variableIndex) {
+    int exponent = (int) this.value;
+    if (exponent == 0) return zero();
+    if (exponent == 1) return this.left.diff(variableKind, variableIndex);
+
+    Term d = this.left.diff(variableKind, variableIndex);
+    if (exponent == 2) return binary(MUL, constant(2.0), binary(MUL, this.left, d));
+    if (d.isZero()) return zero();
+    return binary(MUL, constant(exponent), binary(MUL, pown(this.left, exponent - 1), d));
+  }
+
+  /**
+   * Evaluates a power following sym-derivation semantics
+   *
+   * @param base Base value
+   * @param exponent Exponent value
+   * @return base raised to exponent
+   */
+  public static double pow(double base, double exponent) {
+    if (exponent == 0.0) return 1.0;
+    if (Double.isNaN(base) || Double.isNaN(exponent)) return Double.NaN;
+    if (exponent < 0 && Math.abs(base) < THRESHOLD) return Double.NaN;
+    return Math.pow(base, exponent);
+  }
+
+  /**
+   * Evaluates a logarithm following sym-derivation semantics
+   *
+   * @param arg Argument value
+   * @return Natural logarithm of arg
+   */
+  public static double log(double arg) {
+    if (Double.isNaN(arg) || Math.abs(arg) < THRESHOLD) return Double.NaN;
+    return Math.log(arg);
+  }
+}
@@ -0,0 +1,133 @@
+package gpmf.gp.treeCompiler;
+
+import gpmf.gp.treeGenerator.Tree;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Compiles the prefix notation of a tree into a TreeKernel. The accepted grammar is the one of
+ * SymFunction.parse: tokens are separated by blanks, missing operands are an error and trailing
+ * tokens are ignored.
+ */
+public class TreeCompiler {
+
+  private TreeCompiler() {}
+
+  /**
+   * Compiles the current prefix notation of a tree. Factors values must be already set in the tree
+   * because statements and conditions are evaluated while the prefix is built.
+   *
+   * @param tree Tree instance
+   * @param numFactors Number of factors
+   * @return Compiled kernel
+   */
+  public static TreeKernel compile(Tree tree, int numFactors) {
+    return compile(tree.getPrefix(), numFactors);
+  }
+
+  /**
+   * Compiles an expression in prefix notation
+   *
+   * @param prefix Expression in prefix notation
+   * @param numFactors Number of factors
+   * @return Compiled kernel
+   * @throws IllegalArgumentException if the expression is malformed
+   */
+  public static TreeKernel compile(String prefix, int numFactors) {
+    return new TreeKernel(parse(prefix, numFactors), numFactors);
+  }
+
+  /**
+   * Parses an expression in prefix notation
+   *
+   * @param prefix Expression in prefix notation
+   * @param numFactors Number of factors
+   * @return Parsed term
+   * @throws IllegalArgumentException if the expression is malformed
+   */
+  public static Term parse(String prefix, int numFactors) {
+    Iterator<String> tokens = Arrays.asList(tokenize(prefix)).iterator();
+    return parseTokens(tokens, numFactors);
+  }
+
+  /**
+   * Normalizes the blanks of an expression in prefix notation, so equal expressions produce equal
+   * strings
+   *
+   * @param prefix Expression in prefix notation
+   * @return Canonical prefix notation
+   */
+  public static String canonicalize(String prefix) {
+    return String.join(" ", tokenize(prefix));
+  }
+
+  private static String[] tokenize(String prefix) {
+    String trimmed = prefix.trim();
+    return trimmed.isEmpty() ? new String[0] : trimmed.split(" +");
+  }
+
+  private static Term parseTokens(Iterator<String> tokens, int numFactors) {
+    if (!tokens.hasNext()) throw new IllegalArgumentException("Missing operand in expression");
+
+    String token = tokens.next();
+    switch (token) {
+      case "+":
+        return binary(Term.ADD, tokens, numFactors);
+      case "-":
+        return binary(Term.SUB, tokens, numFactors);
+      case "*":
+        return binary(Term.MUL, tokens, numFactors);
+      case "pow":
+        return binary(Term.POW, tokens, numFactors);
+      case "--":
+        return Term.unary(Term.NEG, parseTokens(tokens, numFactors));
+      case "inv":
+        return Term.inv(parseTokens(tokens, numFactors));
+      case "sin":
+        return Term.unary(Term.SIN, parseTokens(tokens, numFactors));
+      case "cos":
+        return Term.unary(Term.COS, parseTokens(tokens, numFactors));
+      case "atan":
+        return Term.unary(Term.ATAN, parseTokens(tokens, numFactors));
+      case "exp":
+        return Term.unary(Term.EXP, parseTokens(tokens, numFactors));
+      case "log":
+        return Term.unary(Term.LOG, parseTokens(tokens, numFactors));
+      case "pown":
+        {
+          Term arg = parseTokens(tokens, numFactors);
+          if (!tokens.hasNext()) throw new IllegalArgumentException("Missing exponent");
+          return Term.pown(arg, Integer.parseInt(tokens.next()));
+        }
+      case "const":
+        if (!tokens.hasNext()) throw new IllegalArgumentException("Missing constant value");
+        return Term.constant(Double.parseDouble(tokens.next()));
+      case "Zero":
+        return Term.zero();
+      case "One":
+        return Term.one();
+      default:
+        return variable(token, numFactors);
+    }
+  }
+
+  private static Term binary(int kind, Iterator<String> tokens, int numFactors) {
+    Term left = parseTokens(tokens, numFactors);
+    Term right = parseTokens(tokens, numFactors);
+    return Term.binary(kind, left, right);
+  }
+
+  private static Term variable(String token, int numFactors) {
+    if (token.length() > 2 && (token.startsWith("pu") || token.startsWith("qi"))) {
+      try {
+        int index = Integer.parseInt(token.substring(2));
+        if (index >= 0 && index < numFactors) {
+          return token.startsWith("pu") ? Term.pu(index) : Term.qi(index);
+        }
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    throw new IllegalArgumentException("Unknown variable " + token);
+  }
+}
@@ -0,0 +1,82 @@
+package gpmf.gp.treeCompiler;
+
+/**
+ * Compiled form of a tree expression: the prediction function and its forward-mode, reverse-mode
+ * and symbolic differentiations, which return the prediction together with the partial derivatives
+ * with respect to every user (pu) and item (qi) factor. The symbolic gradient is only compiled the
+ * first time it is requested.
+ */
+public class TreeKernel {
+
+  /** Compiled prediction function */
+  private final Kernel function;
+
+  /** Forward-mode differentiation of the function */
+  private final DualKernel gradient;
+
+  /** Reverse-mode differentiation of the function */
+  private final ReverseKernel adjoint;
+
+  /** Term the function was compiled from */
+  private final Term term;
+
+  /** Symbolic gradient of the function, compiled on demand */
+  private volatile GradientDag symbolic = null;
+
+  public TreeKernel(Term term, int numFactors) {
+    this(term, Kernel.compile(term), numFactors);
+  }
+
+  private TreeKernel(Term term, Kernel function, int numFactors) {
+    this.term = term;
+    this.function = function;
+    this.gradient = new DualKernel(function, numFactors);
+    this.adjoint = new ReverseKernel(function, numFactors);
+  }
+
+  public Kernel getFunction() {
+    return this.function;
+  }
+
+  public DualKernel getGradient() {
+    return this.gradient;
+  }
+
+  public ReverseKernel getAdjoint() {
+    return this.adjoint;
+  }
+
+  public GradientDag getSymbolic() {
+    GradientDag dag = this.symbolic;
+    if (dag == null) {
+      synchronized (this) {
+        dag = this.symbolic;
+        if (dag == null) {
+          dag = new GradientDag(this.term, this.getNumFactors());
+          this.symbolic = dag;
+        }
+      }
+    }
+    return dag;
+  }
+
+  public int getNumFactors() {
+    return this.gradient.getNumVariables() / 2;
+  }
+
+  /**
+   * Number of registers required to evaluate the function, or the symbolic gradient once it has
+   * been compiled
+   *
+   * @return Number of registers
+   */
+  public int getNumRegisters() {
+    GradientDag dag = this.symbolic;
+    int numRegisters = this.function.getNumRegisters();
+    return dag == null ? numRegisters : Math.max(numRegisters, dag.getNumRegisters());
+  }
+
+  public int getNumTangents() {
+    return this.gradient.getNumTangents();
+  }
+}
@@ -0,0 +1,204 @@
+package gpmf.gp.treeCompiler;
+
+import gpmf.gp.treeGenerator.Tree;
+import gpmf.gp.treeGenerator.nodeSupport.NodeTool;
+import gpmf.gp.treeGenerator.nodes.Expression;
+import gpmf.gp.treeGenerator.nodes.Leaf;
+import gpmf.gp.treeGenerator.nodes.Node;
+import gpmf.gp.treeGenerator.nodes.Statement;
+
+/**
+ * Algebraic simplification of trees before training. The simplified tree is a clone, the tree of
+ * the individual is never modified.
+ *
+ * <p>Only rewrites that are exact are applied, both for the prefix notation the model trains and
+ * its symbolic derivatives, and for the node evaluation used by the conditions:
+ *
+ * <ul>
+ *   <li>x * One, One * x and x - Zero become x.
+ *   <li>x + Zero and Zero + x become x outside conditions, where the sign of zero can matter.
+ *   <li>pow x One becomes x and pow x Zero becomes One outside conditions. Inside conditions pow
+ *       always evaluates to zero, so it becomes Zero.
+ *   <li>sin, atan and log of constants that give exactly Zero or One are folded, as well as cos,
+ *       exp and inv of them.
+ *   <li>IFStmt nodes whose condition does not depend on any factor are replaced by the statements
+ *       of the branch they always take.
+ * </ul>
+ *
+ * <p>Exponents of pow are never folded into Zero or One leaves, because the symbolic derivative of
+ * pow differs for literal exponents. inv inv x is kept because the double inversion is neither
+ * exact in floating point nor defined for values close to zero.
+ */
+public class TreeSimplifier {
+
+  private TreeSimplifier() {}
+
+  /**
+   * Simplifies a tree
+   *
+   * @param tree Tree to simplify
+   * @return Simplified clone of the tree
+   */
+  public static Tree simplify(Tree tree) {
+    Tree simplified = tree.clone();
+    Node root = simplifyStatement(simplified.getRoot());
+    if (root == null) return tree.clone();
+
+    simplified.setRoot(root);
+    simplified.restructure();
+    return simplified;
+  }
+
+  private static Node simplifyStatement(Node node) {
+    if (!(node instanceof Statement)) return node;
+
+    Statement statement = (Statement) node;
+    Node next = simplifyStatement(statement.getNextNode());
+
+    if (statement.getNodeType().equals("IFStmt")) {
+      Node condition = statement.getConditionNode();
+      if (condition != null) {
+        simplifyCondition(condition);
+        if (isConstant(condition)) {
+          Node taken =
+              condition.eval() == 0.0 ? statement.getLeftNode() : statement.getRightNode();
+          taken = simplifyStatement(taken);
+          if (taken == null) return next;
+
+          Statement tail = (Statement) taken;
+          while (tail.getNextNode() != null) tail = (Statement) tail.getNextNode();
+          tail.setNextNode(next);
+          return taken;
+        }
+      }
+      statement.setLeftNode(simplifyStatement(statement.getLeftNode()));
+      statement.setRightNode(simplifyStatement(statement.getRightNode()));
+    } else if (statement.getRightNode() != null) {
+      statement.setRightNode(simplifyExpression(statement.getRightNode(), false));
+    }
+
+    statement.setNextNode(next);
+    return statement;
+  }
+
+  private static void simplifyCondition(Node condition) {
+    if (condition.getNodeClass().equals("Expression")) return;
+
+    if (condition.getNodeType().equals("ComparisonExpression")) {
+      if (condition.getLeftNode() != null) {
+        condition.setLeftNode(simplifyExpression(condition.getLeftNode(), true));
+      }
+      if (condition.getRightNode() != null) {
+        condition.setRightNode(simplifyExpression(condition.getRightNode(), true));
+      }
+    } else if (condition.getNodeType().equals("NegationExpression")) {
+      if (condition.getRightNode() != null) simplifyCondition(condition.getRightNode());
+    }
+  }
+
+  private static Node simplifyExpression(Node node, boolean inCondition) {
+    if (!(node instanceof Expression) || node.getOperator() == null) return node;
+
+    String operator = node.getOperator().getValue();
+    switch (node.getNodeType()) {
+      case "UnaryExpression":
+        {
+          if (node.getRightNode() == null) return node;
+          Node arg = simplifyExpression(node.getRightNode(), inCondition);
+          node.setRightNode(arg);
+
+          if (isLeaf(arg, "Zero")) {
+            switch (operator) {
+              case "sin":
+              case "atan":
+                return arg;
+              case "cos":
+              case "exp":
+                return constant("One", node);
+            }
+          } else if (isLeaf(arg, "One")) {
+            switch (operator) {
+              case "inv":
+                return arg;
+              case "log":
+                return constant("Zero", node);
+            }
+          }
+          return node;
+        }
+      case "BinaryExpression":
+        {
+          if (node.getLeftNode() == null || node.getRightNode() == null) return node;
+          Node left = simplifyExpression(node.getLeftNode(), inCondition);
+          Node right =
+              operator.equals("pow") && !inCondition
+                  ? simplifyExponent(node.getRightNode())
+                  : simplifyExpression(node.getRightNode(), inCondition);
+          node.setLeftNode(left);
+          node.setRightNode(right);
+
+          switch (operator) {
+            case "*":
+              if (isLeaf(right, "One")) return left;
+              if (isLeaf(left, "One")) return right;
+              break;
+            case "+":
+              if (inCondition) break;
+              if (isLeaf(right, "Zero")) return left;
+              if (isLeaf(left, "Zero")) return right;
+              break;
+            case "-":
+              if (isLeaf(right, "Zero")) return left;
+              break;
+            case "pow":
+              if (inCondition) return constant("Zero", node);
+              if (isLeaf(right, "One")) return left;
+              if (isLeaf(right, "Zero")) return constant("One", node);
+              break;
+          }
+          return node;
+        }
+      default:
+        return node;
+    }
+  }
+
+  /**
+   * The derivative of pow depends on whether its exponent is a literal, so an exponent is never
+   * folded into a Zero or One leaf. Its subexpressions are still simplified.
+   */
+  private static Node simplifyExponent(Node node) {
+    Node simplified = simplifyExpression(node, false);
+    if (simplified != node && (isLeaf(simplified, "Zero") || isLeaf(simplified, "One"))) {
+      return node;
+    }
+    return simplified;
+  }
+
+  private static boolean isLeaf(Node node, String value) {
+    return node.getNodeType().equals("ConstantExpression")
+        && node.getOperator() != null
+        && node.getOperator().getValue().equals(value);
+  }
+
+  private static Node constant(String value, Node replaced) {
+    NodeTool nodeTool = replaced.getNodeTool();
+    Expression expression =
+        new Expression("ConstantExpression", replaced.getDepth(), replaced.getParent(), nodeTool);
+    expression.setOperator(new Leaf(value, replaced.getDepth() + 1, expression, nodeTool));
+    return expression;
+  }
+
+  /** Whether the node evaluates to the same value whatever the factors are */
+  private static boolean isConstant(Node node) {
+    if (node.getNodeType().equals("ConstantExpression")) {
+      Leaf leaf = node.getOperator();
+      return leaf != null && leaf.getSlot() < 0 && !leaf.getValue().equals("result");
+    }
+    // ConditionExpression.eval does not match this type name, so it always evaluates to 1.0
+    if (node.getNodeType().equals("MultiConditionExpression")) return true;
+
+    if (node.getLeftNode() != null && !isConstant(node.getLeftNode())) return false;
+    return node.getRightNode() == null || isConstant(node.getRightNode());
+  }
+}
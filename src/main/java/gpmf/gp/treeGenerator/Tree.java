@@ -63,6 +63,11 @@ public class Tree {
     this.score = score;
   }
 
+  public void bindFactors(
+      double[] userFactors, int userOffset, double[] itemFactors, int itemOffset) {
+    nodeTool.bindFactors(userFactors, userOffset, itemFactors, itemOffset);
+  }
+
   public void setFactorsValues(double[] factorsValues) {
     nodeTool.setFactorsValues(factorsValues);
   }
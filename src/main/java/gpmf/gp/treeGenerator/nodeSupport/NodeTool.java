@@ -9,7 +9,10 @@ public class NodeTool {
   private int depth;
   private int currentNodeNumber;
   private boolean hasCondition;
-  private HashMap<String, Double> factorsValues;
+  private double[] userFactors;
+  private int userOffset;
+  private double[] itemFactors;
+  private int itemOffset;
   private String[] factors;
   private final int numFactors;
 
@@ -120,25 +123,64 @@ public class NodeTool {
   }
 
   public double getFactor(String key) {
-    return this.factorsValues.get(key);
+    switch (key) {
+      case "One":
+        return 1.0;
+      case "Zero":
+        return 0.0;
+      default:
+        int slot = this.getFactorSlot(key);
+        if (slot < 0) throw new IllegalArgumentException("Unknown factor " + key);
+        return this.getFactor(slot);
+    }
   }
 
-  public void setFactorsValues(double[] factorsParam) {
-    this.factorsValues = new HashMap<>();
-    for (int i = 0; i < factorsParam.length / 2; i++) {
-      this.factorsValues.put("pu" + i, factorsParam[i]);
-    }
-    for (int i = factorsParam.length / 2; i < factorsParam.length; i++) {
-      this.factorsValues.put("qi" + (i - factorsParam.length / 2), factorsParam[i]);
+  /**
+   * Resolves a leaf value to its factor slot: pu factors take slots 0..numFactors-1 and qi factors
+   * take slots numFactors..2*numFactors-1.
+   *
+   * @param key Leaf value
+   * @return Factor slot or -1 if the value is not a factor
+   */
+  public int getFactorSlot(String key) {
+    for (int i = 0; i < this.numFactors * 2; i++) {
+      if (this.factors[i].equals(key)) return i;
     }
-    this.factorsValues.put("One", 1.0);
-    this.factorsValues.put("Zero", 0.0);
+    return -1;
+  }
+
+  public double getFactor(int slot) {
+    if (slot < this.numFactors) return this.userFactors[this.userOffset + slot];
+    return this.itemFactors[this.itemOffset + slot - this.numFactors];
+  }
+
+  /**
+   * Binds the factors read by the leaves to a user row and an item row. Rows are read in place, so
+   * no values are copied.
+   *
+   * @param userFactors Array holding the user factors
+   * @param userOffset Position of pu0 inside userFactors
+   * @param itemFactors Array holding the item factors
+   * @param itemOffset Position of qi0 inside itemFactors
+   */
+  public void bindFactors(
+      double[] userFactors, int userOffset, double[] itemFactors, int itemOffset) {
+    this.userFactors = userFactors;
+    this.userOffset = userOffset;
+    this.itemFactors = itemFactors;
+    this.itemOffset = itemOffset;
+  }
+
+  public void setFactorsValues(double[] factorsParam) {
+    this.bindFactors(factorsParam, 0, factorsParam, factorsParam.length / 2);
   }
 
   public void setFactorsValues(HashMap<String, Double> factorsValues) {
-    this.factorsValues = (HashMap<String, Double>) factorsValues.clone();
-    this.factorsValues.put("One", 1.0);
-    this.factorsValues.put("Zero", 0.0);
+    double[] factorsParam = new double[this.numFactors * 2];
+    for (int i = 0; i < factorsParam.length; i++) {
+      factorsParam[i] = factorsValues.getOrDefault(this.factors[i], Double.NaN);
+    }
+    this.setFactorsValues(factorsParam);
   }
 
   public void reset() {
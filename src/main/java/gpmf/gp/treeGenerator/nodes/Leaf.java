@@ -10,17 +10,19 @@ import gpmf.gp.treeGenerator.TreeElement;
 
 public class Leaf extends TreeElement {
   private String value;
+  private int slot;
   private NodeTool nodeTool;
 
   public Leaf(String value, int depth, Node parent, NodeTool nodeTool) {
+    this.setNodeTool(nodeTool);
     this.setValue(value);
     this.setDepth(depth);
     this.setParent(parent);
-    this.setNodeTool(nodeTool);
   }
 
   public void setNodeTool(NodeTool nodeTool) {
     this.nodeTool = nodeTool;
+    this.resolveSlot();
   }
 
   public NodeTool getNodeTool() {
@@ -29,12 +31,24 @@ public class Leaf extends TreeElement {
 
   public void setValue(String value) {
     this.value = value;
+    this.resolveSlot();
   }
 
   public String getValue() {
     return value;
   }
 
+  public int getSlot() {
+    return slot;
+  }
+
+  private void resolveSlot() {
+    this.slot =
+        (this.nodeTool == null || this.value == null)
+            ? -1
+            : this.nodeTool.getFactorSlot(this.value);
+  }
+
   @Override
   public void draw(Pane canvas, int xStart, int yStart, int xEnd, int yEnd, int[] silhouette) {
     xEnd = silhouette[this.getDepth()];
@@ -81,7 +95,8 @@ public class Leaf extends TreeElement {
         res = 0.0;
         break;
       default:
-        res = this.nodeTool.getFactor(this.value);
+        if (this.slot < 0) throw new IllegalStateException("Unknown factor " + this.value);
+        res = this.nodeTool.getFactor(this.slot);
     }
     return res;
   }
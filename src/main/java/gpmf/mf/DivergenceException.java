@@ -0,0 +1,23 @@
+package gpmf.mf;
+
+/**
+ * Thrown by MF.fit when the training loss becomes non-finite or a latent factor grows past the
+ * divergence bound. Training is aborted as soon as it is detected, so diverging individuals do not
+ * run their remaining iterations.
+ */
+public class DivergenceException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Iteration in which the divergence was detected */
+  private final int iter;
+
+  public DivergenceException(int iter, String message) {
+    super(message + " at iteration " + iter);
+    this.iter = iter;
+  }
+
+  public int getIter() {
+    return this.iter;
+  }
+}
@@ -0,0 +1,126 @@
+package gpmf.mf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide store of trained factor matrices used to warm-start children from their parents.
+ * Entries are keyed by the id of the individual and a fingerprint of the training ratings, so each
+ * cross-validation fold only reuses factors trained on that same fold. The store is bounded by the
+ * total number of retained factor values and evicts the least recently used matrices. It is
+ * disabled while its maximum size is 0.
+ */
+public class FactorStore {
+
+  private static long maxSize = 0;
+
+  /** Number of factor values currently retained */
+  private static long size = 0;
+
+  private static final Map<String, double[][]> factors = new LinkedHashMap<>(256, 0.75f, true);
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private FactorStore() {}
+
+  public static boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Retains a copy of the trained factors of an individual
+   *
+   * @param id Id of the individual
+   * @param fingerprint Fingerprint of the training ratings
+   * @param p User factors array
+   * @param q Item factors array
+   */
+  public static void put(int id, long fingerprint, double[] p, double[] q) {
+    long entrySize = (long) p.length + q.length;
+    if (entrySize > maxSize) return;
+
+    double[][] entry = new double[][] {p.clone(), q.clone()};
+    synchronized (factors) {
+      double[][] previous = factors.put(id + ":" + fingerprint, entry);
+      if (previous != null) size -= previous[0].length + previous[1].length;
+      size += entrySize;
+      evict();
+    }
+  }
+
+  /**
+   * Copies the retained factors of an individual into the given arrays
+   *
+   * @param id Id of the individual
+   * @param fingerprint Fingerprint of the training ratings
+   * @param p User factors array to fill
+   * @param q Item factors array to fill
+   * @return true if factors of the same shape were found and copied
+   */
+  public static boolean load(int id, long fingerprint, double[] p, double[] q) {
+    double[][] entry;
+    synchronized (factors) {
+      entry = factors.get(id + ":" + fingerprint);
+    }
+    if (entry == null || entry[0].length != p.length || entry[1].length != q.length) {
+      misses.incrementAndGet();
+      return false;
+    }
+
+    hits.incrementAndGet();
+    System.arraycopy(entry[0], 0, p, 0, p.length);
+    System.arraycopy(entry[1], 0, q, 0, q.length);
+    return true;
+  }
+
+  private static void evict() {
+    Iterator<double[][]> it = factors.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      double[][] eldest = it.next();
+      size -= eldest[0].length + eldest[1].length;
+      it.remove();
+    }
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  public static long size() {
+    synchronized (factors) {
+      return size;
+    }
+  }
+
+  public static long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Sets the maximum number of retained factor values
+   *
+   * @param maxSize Maximum number of factor values, 0 to disable warm starts
+   */
+  public static void setMaxSize(long maxSize) {
+    synchronized (factors) {
+      FactorStore.maxSize = maxSize;
+      evict();
+    }
+  }
+
+  public static void clear() {
+    synchronized (factors) {
+      factors.clear();
+      size = 0;
+    }
+    hits.set(0);
+    misses.set(0);
+  }
+}
@@ -0,0 +1,167 @@
+package gpmf.mf;
+
+import es.upm.etsisi.cf4j.data.DataModel;
+import es.upm.etsisi.cf4j.recommender.Recommender;
+
+import java.util.Random;
+
+/**
+ * Random k-fold split of the ratings of a RatingStore. Every rating is assigned to one fold, and
+ * the ratings in and out of each fold are precomputed as index arrays over the store. MF trained
+ * with a fold reads the store through those arrays, so each fold can be trained and scored as an
+ * independent task without copying the ratings. The split is immutable and can be shared by every
+ * model of a run.
+ */
+public class Folds {
+
+  /** Number of folds */
+  private final int numFolds;
+
+  /** Seed used to shuffle the ratings */
+  private final long seed;
+
+  /** Ratings split in folds */
+  private final RatingStore ratings;
+
+  /** Fold of each rating */
+  private final int[] folds;
+
+  /** Ratings of each fold, in ascending order */
+  private final int[][] testRatings;
+
+  /** Ratings out of each fold, in ascending order */
+  private final int[][] trainRatings;
+
+  /** Every rating, in ascending order */
+  private final int[] allRatings;
+
+  /**
+   * Splits the ratings of a datamodel
+   *
+   * @param datamodel DataModel instance
+   * @param numFolds Number of folds
+   * @param seed Seed used to shuffle the ratings
+   */
+  public Folds(DataModel datamodel, int numFolds, long seed) {
+    this(new RatingStore(datamodel), numFolds, seed);
+  }
+
+  /**
+   * Splits the ratings of a store
+   *
+   * @param ratings Ratings to split
+   * @param numFolds Number of folds
+   * @param seed Seed used to shuffle the ratings
+   */
+  public Folds(RatingStore ratings, int numFolds, long seed) {
+    this.numFolds = numFolds;
+    this.seed = seed;
+    this.ratings = ratings;
+
+    int numRatings = ratings.getNumRatings();
+    this.allRatings = new int[numRatings];
+    for (int r = 0; r < numRatings; r++) this.allRatings[r] = r;
+
+    int[] order = this.allRatings.clone();
+    Random random = new Random(seed);
+    for (int i = numRatings - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int aux = order[i];
+      order[i] = order[j];
+      order[j] = aux;
+    }
+
+    this.folds = new int[numRatings];
+    for (int i = 0; i < numRatings; i++) this.folds[order[i]] = i % numFolds;
+
+    int[] sizes = new int[numFolds];
+    for (int r = 0; r < numRatings; r++) sizes[this.folds[r]]++;
+
+    this.testRatings = new int[numFolds][];
+    this.trainRatings = new int[numFolds][];
+    for (int f = 0; f < numFolds; f++) {
+      this.testRatings[f] = new int[sizes[f]];
+      this.trainRatings[f] = new int[numRatings - sizes[f]];
+    }
+
+    int[] test = new int[numFolds];
+    int[] train = new int[numFolds];
+    for (int r = 0; r < numRatings; r++) {
+      for (int f = 0; f < numFolds; f++) {
+        if (this.folds[r] == f) this.testRatings[f][test[f]++] = r;
+        else this.trainRatings[f][train[f]++] = r;
+      }
+    }
+  }
+
+  public int getNumFolds() {
+    return this.numFolds;
+  }
+
+  public long getSeed() {
+    return this.seed;
+  }
+
+  public int getNumRatings() {
+    return this.folds.length;
+  }
+
+  public RatingStore getRatings() {
+    return this.ratings;
+  }
+
+  /**
+   * Fold of a rating
+   *
+   * @param rating Index of the rating
+   * @return Fold of the rating
+   */
+  public int getFold(int rating) {
+    return this.folds[rating];
+  }
+
+  /**
+   * Ratings trained when a fold is held out. The array is shared and must not be modified.
+   *
+   * @param fold Fold held out, negative to train every rating
+   * @return Indices of the training ratings in ascending order
+   */
+  int[] getTrainRatings(int fold) {
+    return fold < 0 ? this.allRatings : this.trainRatings[fold];
+  }
+
+  /**
+   * Computes the MSE of the ratings of a fold as qualityMeasures.prediction.MSE does with test
+   * ratings: the squared errors are averaged per user and then over the users with ratings in the
+   * fold.
+   *
+   * @param recommender Recommender trained without the ratings of the fold
+   * @param fold Fold to score
+   * @return MSE of the fold
+   */
+  public double mse(Recommender recommender, int fold) {
+    int[] users = this.ratings.users;
+    int[] test = this.testRatings[fold];
+
+    double sum = 0.0;
+    int count = 0;
+
+    // ratings of a user are contiguous, so the ratings of the fold are grouped by user
+    for (int j = 0; j < test.length; ) {
+      int userIndex = users[test[j]];
+      double userSum = 0.0;
+      int userCount = 0;
+      for (; j < test.length && users[test[j]] == userIndex; j++) {
+        int r = test[j];
+        double diff =
+            recommender.predict(userIndex, this.ratings.items[r]) - this.ratings.values[r];
+        userSum += diff * diff;
+        userCount++;
+      }
+      sum += userSum / userCount;
+      count++;
+    }
+
+    return count == 0 ? Double.NaN : sum / count;
+  }
+}
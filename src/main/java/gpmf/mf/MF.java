@@ -5,15 +5,44 @@ import es.upm.etsisi.cf4j.data.Item;
 import es.upm.etsisi.cf4j.data.User;
 import es.upm.etsisi.cf4j.recommender.Recommender;
 import gpmf.Individual;
+import gpmf.gp.treeCompiler.DualKernel;
+import gpmf.gp.treeCompiler.GradientDag;
+import gpmf.gp.treeCompiler.KernelCache;
+import gpmf.gp.treeCompiler.PiecewiseKernel;
+import gpmf.gp.treeCompiler.Tape;
+import gpmf.gp.treeCompiler.TreeKernel;
+import gpmf.gp.treeCompiler.TreeSimplifier;
 import gpmf.gp.treeGenerator.Tree;
-import sym_derivation.symderivation.SymFunction;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
 
 public class MF extends Recommender {
 
+  /** Automatic differentiation mode used to compute the gradient of the tree * */
+  public enum GradientMode {
+    /** Dual numbers, one pass and gradients equal to the symbolic derivatives * */
+    FORWARD,
+    /** Adjoints over a tape, cost independent of the number of factors * */
+    REVERSE,
+    /** Symbolic derivatives compiled with the function into one DAG of shared subexpressions * */
+    SYMBOLIC
+  }
+
+  /** Strategy used to update the latent factors * */
+  public enum TrainingMode {
+    /** Full-batch gradient descent, factors are updated once per iteration * */
+    BATCH,
+    /** Lock-free stochastic gradient descent, factors are updated in place after every rating * */
+    HOGWILD,
+    /** Mini-batch gradient descent, factors are updated after every batch of shuffled ratings * */
+    MINI_BATCH
+  }
+
   /** Learning Rate * */
   private final double learningRate;
 
@@ -29,21 +58,99 @@ public class MF extends Recommender {
   /** Tree instance * */
   private final Tree treeInstance;
 
-  /** SymFunction instance * */
-  private SymFunction sf = null;
+  /** Simplified tree that gets compiled * */
+  private final Tree simplifiedTree;
+
+  /** Branch specialized kernels of the tree * */
+  private final PiecewiseKernel piecewiseKernel;
+
+  /** Number of partitions of users, or of ratings in HOGWILD mode, trained in parallel * */
+  private int numPartitions = 1;
+
+  /** Lower bound of the uniform random initialization of the latent factors * */
+  public static final double INIT_MIN = 0.0;
+
+  /** Upper bound of the uniform random initialization of the latent factors * */
+  public static final double INIT_MAX = 1.0;
+
+  /** Default bound of the absolute value of the latent factors before training is aborted * */
+  public static final double DEFAULT_DIVERGENCE_BOUND = 1e6;
+
+  /** Bound of the absolute value of the latent factors before training is aborted * */
+  private double divergenceBound = DEFAULT_DIVERGENCE_BOUND;
+
+  /** Default number of iterations over which the relative loss change is measured * */
+  public static final int DEFAULT_CONVERGENCE_WINDOW = 10;
+
+  /** Relative loss change over the window below which training stops, 0 to disable it * */
+  private double convergenceTolerance = 0.0;
+
+  /** Number of iterations over which the relative loss change is measured * */
+  private int convergenceWindow = DEFAULT_CONVERGENCE_WINDOW;
+
+  /** Ratio of the ratings held out to measure convergence, 0 to use the training loss * */
+  private double validationRatio = 0.0;
+
+  /** Split of the ratings in cross-validation folds, null if the ratings are not shared * */
+  private Folds folds = null;
+
+  /** Fold held out of training, negative to train every rating * */
+  private int fold = -1;
+
+  /** View of the trained and held out ratings, built by fit * */
+  private Ratings ratings = null;
+
+  /** Maximum number of doubles used to cache the item-only part of the tree per iteration * */
+  private static final int MAX_ITEM_STATE_SIZE = 1 << 20;
+
+  /** Differentiation mode * */
+  private final GradientMode gradientMode;
+
+  /** Training mode of the individual * */
+  private final TrainingMode trainingMode;
+
+  /** Whether loop invariant parts of the tree are hoisted out of the ratings loop * */
+  private boolean hoisting = true;
 
   /** Individual * */
   private final Individual individual;
 
-  /** User latent factors matrix p * */
-  private final double[][] p;
+  /** User latent factors matrix p, row-major with stride numFactors * */
+  private final double[] p;
+
+  /** User latent factors matrix q, row-major with stride numFactors * */
+  private final double[] q;
+
+  /** Gradient accumulator of p, cleared in place every iteration * */
+  private final double[] dp;
 
-  /** User latent factors matrix q * */
-  private final double[][] q;
+  /** Gradient accumulator of q, cleared in place every iteration * */
+  private final double[] dq;
+
+  /** Optimizer of p * */
+  private final Optimizer pOptimizer;
+
+  /** Optimizer of q * */
+  private final Optimizer qOptimizer;
+
+  /** Number of items * */
+  private final int numItems;
 
   /** Seed of the model* */
   private final Random seed;
 
+  /** Fingerprint of the training ratings used to retain the factors, 0 if FactorStore is off * */
+  private long fingerprint = 0L;
+
+  /** Whether the factors were initialized from the retained factors of a parent * */
+  private boolean warmStarted = false;
+
+  /** Iterations trained by fit, 0 until it finishes * */
+  private int numItersUsed = 0;
+
+  /** Whether the model warm-starts from and retains its factors in FactorStore when enabled * */
+  private boolean factorStore = true;
+
   /**
    * Model constructor from a Map containing the model's hyper-parameters values. Map object must
    * contains the following keys:
@@ -53,6 +160,30 @@ public class MF extends Recommender {
    *       numFactors and numIters.
    *   <li><b><em>seed</em></b> (optional): random seed for random numbers generation. If missing, *
    *       random value is used.
+   *   <li><b><em>gradientMode</em></b> (optional): GradientMode used to differentiate the tree. If
+   *       missing, FORWARD is used.
+   *   <li><b><em>hoisting</em></b> (optional): whether user-only and item-only parts of the tree
+   *       are evaluated once per user and item. If missing, true is used.
+   *   <li><b><em>partitions</em></b> (optional): number of user partitions, or rating partitions in
+   *       HOGWILD mode, trained in parallel. If missing, 1 is used.
+   *   <li><b><em>divergenceBound</em></b> (optional): double value with the bound of the absolute
+   *       value of the latent factors, past which training is aborted. If missing,
+   *       DEFAULT_DIVERGENCE_BOUND is used.
+   *   <li><b><em>convergenceTolerance</em></b> (optional): double value with the relative loss
+   *       change over convergenceWindow iterations below which training stops early. If missing,
+   *       0 is used and all the iterations are trained.
+   *   <li><b><em>convergenceWindow</em></b> (optional): int value with the number of iterations
+   *       over which the loss change is measured. If missing, DEFAULT_CONVERGENCE_WINDOW is used.
+   *   <li><b><em>validationRatio</em></b> (optional): double value with the ratio of ratings held
+   *       out of training whose loss is used to detect convergence. If missing, 0 is used and the
+   *       training loss is tracked instead.
+   *   <li><b><em>factorStore</em></b> (optional): whether the model warm-starts from and retains
+   *       its factors in FactorStore when it is enabled. If missing, true is used.
+   *   <li><b><em>folds</em></b> and <b><em>fold</em></b> (optional): Folds split of the ratings
+   *       of the datamodel and int value with the fold whose ratings are held out of training,
+   *       negative to train every rating. The ratings are read from the store of the split without
+   *       copying them. If missing, the ratings are copied from the datamodel and all of them are
+   *       trained.
    * </ul>
    *
    * @param datamodel DataModel instance
@@ -62,7 +193,29 @@ public class MF extends Recommender {
     this(
         datamodel,
         (Individual) params.get("individual"),
-        params.containsKey("seed") ? (long) params.get("seed") : System.currentTimeMillis());
+        params.containsKey("seed") ? (long) params.get("seed") : System.currentTimeMillis(),
+        params.containsKey("gradientMode")
+            ? (GradientMode) params.get("gradientMode")
+            : GradientMode.FORWARD);
+
+    if (params.containsKey("hoisting")) this.hoisting = (boolean) params.get("hoisting");
+    if (params.containsKey("partitions")) this.setNumPartitions((int) params.get("partitions"));
+    if (params.containsKey("divergenceBound")) {
+      this.divergenceBound = (double) params.get("divergenceBound");
+    }
+    if (params.containsKey("convergenceTolerance")) {
+      this.convergenceTolerance = (double) params.get("convergenceTolerance");
+    }
+    if (params.containsKey("convergenceWindow")) {
+      this.setConvergenceWindow((int) params.get("convergenceWindow"));
+    }
+    if (params.containsKey("validationRatio")) {
+      this.validationRatio = (double) params.get("validationRatio");
+    }
+    if (params.containsKey("factorStore")) this.factorStore = (boolean) params.get("factorStore");
+    if (params.containsKey("folds")) {
+      this.setFold((Folds) params.get("folds"), (int) params.get("fold"));
+    }
   }
 
   /**
@@ -83,6 +236,18 @@ public class MF extends Recommender {
    * @param seed Seed for random numbers generation
    */
   public MF(DataModel datamodel, Individual individual, long seed) {
+    this(datamodel, individual, seed, GradientMode.FORWARD);
+  }
+
+  /**
+   * Model constructor
+   *
+   * @param datamodel DataModel instance
+   * @param individual Individual instance
+   * @param seed Seed for random numbers generation
+   * @param gradientMode Automatic differentiation mode
+   */
+  public MF(DataModel datamodel, Individual individual, long seed, GradientMode gradientMode) {
     super(datamodel);
 
     this.treeInstance = individual.getTree();
@@ -91,145 +256,822 @@ public class MF extends Recommender {
     this.regularization = individual.getRegularization();
     this.learningRate = individual.getLearningRate();
     this.individual = individual;
+    this.trainingMode = individual.getTrainingMode();
+
+    this.gradientMode = gradientMode;
+    this.simplifiedTree = TreeSimplifier.simplify(this.treeInstance);
+    this.piecewiseKernel = new PiecewiseKernel(this.simplifiedTree, this.numFactors);
 
     this.seed = new Random(seed);
 
-    this.p = new double[datamodel.getNumberOfUsers()][numFactors];
+    this.p = new double[datamodel.getNumberOfUsers() * numFactors];
     for (User user : super.getDataModel().getUsers()) {
-      p[user.getUserIndex()] = this.random(this.numFactors, 0, 1);
+      int pu = user.getUserIndex() * this.numFactors;
+      for (int k = 0; k < this.numFactors; k++) p[pu + k] = this.random(INIT_MIN, INIT_MAX);
     }
 
-    this.q = new double[datamodel.getNumberOfItems()][numFactors];
+    this.numItems = datamodel.getNumberOfItems();
+    this.q = new double[this.numItems * numFactors];
     for (Item item : super.getDataModel().getItems()) {
-      q[item.getItemIndex()] = this.random(this.numFactors, 0, 1);
+      int qi = item.getItemIndex() * this.numFactors;
+      for (int k = 0; k < this.numFactors; k++) q[qi + k] = this.random(INIT_MIN, INIT_MAX);
     }
+
+    this.dp = new double[this.p.length];
+    this.dq = new double[this.q.length];
+
+    this.pOptimizer = Optimizer.create(individual.getOptimizer(), this.p.length, learningRate);
+    this.qOptimizer = Optimizer.create(individual.getOptimizer(), this.q.length, learningRate);
   }
 
+  /**
+   * Trains the factors. The loss and the factors are checked after every iteration, so training
+   * stops as soon as it diverges, or when the loss has plateaued if a convergence tolerance is set.
+   * If FactorStore is enabled and used by the model, the trained factors are retained to
+   * warm-start the children of the individual. The number of iterations actually trained is
+   * available from getNumItersUsed. The individual itself is not modified, so several models of
+   * the same individual can be trained at once.
+   *
+   * @throws DivergenceException if the loss becomes non-finite or a factor grows past the
+   *     divergence bound
+   */
   public void fit() {
-    boolean hasCondition = true;
+    if (this.usesFactorStore()) {
+      this.fingerprint = this.fingerprint();
+      this.warmStarted =
+          this.individual.getWarmStart() >= 0
+              && FactorStore.load(this.individual.getWarmStart(), this.fingerprint, p, q);
+    }
+
+    RatingStore store =
+        this.folds != null ? this.folds.getRatings() : new RatingStore(super.getDataModel());
+    this.ratings = new Ratings(store, this.folds, this.fold);
+    if (this.validationRatio > 0.0) this.ratings.holdOut(this.validationRatio, this.seed);
+    Convergence convergence =
+        this.convergenceTolerance > 0.0
+            ? new Convergence(this.convergenceWindow, this.convergenceTolerance)
+            : null;
 
-    SymFunction[] puSfDiff = new SymFunction[this.numFactors];
-    SymFunction[] qiSfDiff = new SymFunction[this.numFactors];
+    this.numItersUsed =
+        this.trainingMode == TrainingMode.BATCH
+            ? this.fitBatch(convergence)
+            : this.fitStochastic(convergence);
+
+    if (this.usesFactorStore()) {
+      FactorStore.put(this.individual.getId(), this.fingerprint, this.p, this.q);
+    }
+  }
+
+  private int fitBatch(Convergence convergence) {
+    Partition[] partitions = this.createPartitions();
 
     for (int iter = 1; iter <= this.numIters; iter++) {
+      Arrays.fill(this.dp, 0.0);
+
+      if (partitions.length == 1) {
+        Arrays.fill(this.dq, 0.0);
+        this.accumulate(partitions[0], 1, iter);
+      } else {
+        int currentIter = iter;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(partitions.length);
+        for (Partition partition : partitions) {
+          tasks.add(
+              ForkJoinTask.adapt(() -> this.accumulate(partition, partitions.length, currentIter)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        // partitions are reduced in a fixed order, so results do not depend on the threads used
+        for (int j = 0; j < this.dq.length; j++) {
+          double sum = 0.0;
+          for (Partition partition : partitions) sum += partition.dq[j];
+          this.dq[j] = sum;
+        }
+      }
+
+      this.pOptimizer.nextStep();
+      this.qOptimizer.nextStep();
+      for (int j = 0; j < p.length; j++) p[j] += this.pOptimizer.step(j, dp[j]);
+      for (int j = 0; j < q.length; j++) q[j] += this.qOptimizer.step(j, dq[j]);
+
+      if (this.hasConverged(iter, partitions, convergence)) return iter;
+    }
+    return this.numIters;
+  }
+
+  /**
+   * Accumulates the gradients of the ratings of the users of a partition. User gradients go
+   * directly into dp because every user belongs to a single partition, item gradients go into the
+   * buffer of the partition.
+   *
+   * @param partition Partition to train
+   * @param numPartitions Number of partitions trained in the iteration, which share the item cache
+   *     budget
+   * @param iter Current iteration
+   */
+  private void accumulate(Partition partition, int numPartitions, int iter) {
+    Tape tape = Tape.get();
+    double[] dq = partition.dq;
+    if (dq != this.dq) Arrays.fill(dq, 0.0);
+    partition.loss = 0.0;
 
-      double[][] dp = new double[super.getDataModel().getNumberOfUsers()][this.numFactors];
-      double[][] dq = new double[super.getDataModel().getNumberOfItems()][this.numFactors];
-
-      String oldFunc = "";
-
-      for (User user : super.getDataModel().getUsers()) {
-        for (int i = 0; i < user.getNumberOfRatings(); i++) {
-          int itemIndex = user.getItemAt(i);
-
-          HashMap<String, Double> params = getParams(p[user.getUserIndex()], q[itemIndex]);
-
-          if (hasCondition) {
-            treeInstance.reset();
-            treeInstance.setFactorsValues(params);
-            String func = treeInstance.getPrefix();
-
-            if (!func.equals(oldFunc)) {
-              try {
-                this.sf = SymFunction.parse(func);
-              } catch (Exception e) {
-                this.sf = SymFunction.parse("Zero");
-              }
-              for (int k = 0; k < this.numFactors; k++) {
-                puSfDiff[k] = this.sf.diff("pu" + k);
-                qiSfDiff[k] = this.sf.diff("qi" + k);
-              }
-              hasCondition = treeInstance.getNodeTool().getHasCondition();
-              oldFunc = func;
-            }
+    Ratings ratings = this.ratings;
+    for (int userIndex = partition.from; userIndex < partition.to; userIndex++) {
+      boolean userEvaluated = false;
+
+      for (int r = ratings.offsets[userIndex]; r < ratings.offsets[userIndex + 1]; r++) {
+        if (ratings.isHeldOut(r)) continue;
+
+        int itemIndex = ratings.items[r];
+
+        int pu = userIndex * this.numFactors;
+        int qi = itemIndex * this.numFactors;
+
+        TreeKernel kernel = partition.piecewiseKernel.select(p, pu, q, qi);
+        tape.ensure(kernel);
+
+        double[] gradient = tape.getGradient();
+        double prediction;
+        if (this.isHoistable(kernel)) {
+          DualKernel dual = kernel.getGradient();
+          double[] registers = tape.getRegisters();
+          double[] tangents = tape.getTangents();
+
+          if (!userEvaluated) {
+            dual.evalUser(p, pu, registers, tangents);
+            userEvaluated = true;
           }
 
-          double prediction = this.sf.eval(params);
-          double error = user.getRatingAt(i) - prediction;
+          // item-only registers are cached per item because q does not change during an iteration
+          int stateSize = dual.getItemStateSize();
+          if (partition.itemStates == null
+              && stateSize > 0
+              && (long) stateSize * this.numItems * numPartitions <= MAX_ITEM_STATE_SIZE) {
+            partition.itemStates = new double[stateSize * this.numItems];
+            partition.itemStatesIter = new int[this.numItems];
+          }
 
-          for (int k = 0; k < this.numFactors; k++) {
-            dp[user.getUserIndex()][k] +=
-                this.learningRate
-                    * (error * puSfDiff[k].eval(params)
-                        - this.regularization * p[user.getUserIndex()][k]);
-            dq[itemIndex][k] +=
-                this.learningRate
-                    * (error * qiSfDiff[k].eval(params) - this.regularization * q[itemIndex][k]);
+          if (partition.itemStates == null) {
+            dual.evalItem(q, qi, registers, tangents);
+          } else if (partition.itemStatesIter[itemIndex] == iter) {
+            dual.loadItem(partition.itemStates, itemIndex * stateSize, registers, tangents);
+          } else {
+            dual.evalItem(q, qi, registers, tangents);
+            dual.saveItem(registers, tangents, partition.itemStates, itemIndex * stateSize);
+            partition.itemStatesIter[itemIndex] = iter;
           }
+
+          prediction = dual.evalMixed(p, pu, q, qi, registers, tangents, gradient);
+        } else {
+          prediction = this.evalGradient(kernel, tape, pu, qi);
         }
-      }
+        double error = ratings.values[r] - prediction;
+        partition.loss += error * error;
 
-      for (User user : super.getDataModel().getUsers()) {
         for (int k = 0; k < this.numFactors; k++) {
-          p[user.getUserIndex()][k] += dp[user.getUserIndex()][k];
+          dp[pu + k] +=
+              this.learningRate * (error * gradient[k] - this.regularization * p[pu + k]);
+          dq[qi + k] +=
+              this.learningRate
+                  * (error * gradient[this.numFactors + k] - this.regularization * q[qi + k]);
         }
       }
+    }
+  }
 
-      for (Item item : super.getDataModel().getItems()) {
-        for (int k = 0; k < this.numFactors; k++) {
-          q[item.getItemIndex()][k] += dq[item.getItemIndex()][k];
+  /**
+   * Stochastic training: every iteration the ratings are shuffled into a primitive index array and
+   * swept in that order.
+   *
+   * <p>In HOGWILD mode each partition sweeps a slice of the shuffled ratings, updating the factors
+   * of the user and the item in place after every rating without any locking. Concurrent updates
+   * of the same row may be lost, which is tolerated because ratings are sparse. Results are only
+   * reproducible with a single partition.
+   *
+   * <p>In MINI_BATCH mode the shuffled ratings are split in batches of batchSize ratings, whose
+   * gradients are accumulated as in BATCH mode and applied at the end of each batch. Only the rows
+   * touched by the batch are updated and cleared.
+   */
+  private int fitStochastic(Convergence convergence) {
+    Ratings ratings = this.ratings;
+    int numRatings = ratings.order.length;
+
+    int numPartitions =
+        this.trainingMode == TrainingMode.HOGWILD
+            ? Math.max(1, Math.min(this.numPartitions, numRatings))
+            : 1;
+    Partition[] partitions = new Partition[numPartitions];
+    for (int i = 0; i < numPartitions; i++) {
+      partitions[i] =
+          new Partition(
+              (int) ((long) numRatings * i / numPartitions),
+              (int) ((long) numRatings * (i + 1) / numPartitions),
+              i == 0
+                  ? this.piecewiseKernel
+                  : new PiecewiseKernel(this.simplifiedTree, this.numFactors),
+              null);
+    }
+
+    MiniBatch miniBatch =
+        this.trainingMode == TrainingMode.MINI_BATCH
+            ? new MiniBatch(super.getDataModel().getNumberOfUsers(), this.numItems)
+            : null;
+    int batchSize = Math.max(1, this.individual.getBatchSize());
+
+    for (int iter = 1; iter <= this.numIters; iter++) {
+      ratings.shuffle(this.seed);
+      if (miniBatch == null) {
+        this.pOptimizer.nextStep();
+        this.qOptimizer.nextStep();
+      }
+
+      for (Partition partition : partitions) partition.loss = 0.0;
+
+      if (miniBatch != null) {
+        for (int from = 0; from < numRatings; from += batchSize) {
+          this.miniBatch(
+              partitions[0], ratings, from, Math.min(from + batchSize, numRatings), miniBatch);
+        }
+      } else if (numPartitions == 1) {
+        this.sweep(partitions[0], ratings);
+      } else {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(numPartitions);
+        for (Partition partition : partitions) {
+          tasks.add(ForkJoinTask.adapt(() -> this.sweep(partition, ratings)));
         }
+        ForkJoinTask.invokeAll(tasks);
       }
+
+      if (this.hasConverged(iter, partitions, convergence)) return iter;
     }
+    return this.numIters;
   }
 
-  @Override
-  public synchronized double predict(int userIndex, int itemIndex) {
-    HashMap<String, Double> params = getParams(p[userIndex], q[itemIndex]);
-    treeInstance.reset();
-    treeInstance.setFactorsValues(params);
-    String func = treeInstance.getPrefix();
+  private void sweep(Partition partition, Ratings ratings) {
+    Tape tape = Tape.get();
 
-    SymFunction[] puSfDiff;
-    SymFunction[] qiSfDiff;
+    for (int j = partition.from; j < partition.to; j++) {
+      int r = ratings.order[j];
+      int pu = ratings.users[r] * this.numFactors;
+      int qi = ratings.items[r] * this.numFactors;
 
-    try {
-      this.sf = SymFunction.parse(func);
+      TreeKernel kernel = partition.piecewiseKernel.select(p, pu, q, qi);
+      tape.ensure(kernel);
 
-      puSfDiff = new SymFunction[this.numFactors];
-      qiSfDiff = new SymFunction[this.numFactors];
+      double[] gradient = tape.getGradient();
+      double error = ratings.values[r] - this.evalGradient(kernel, tape, pu, qi);
+      partition.loss += error * error;
 
       for (int k = 0; k < this.numFactors; k++) {
-        puSfDiff[k] = this.sf.diff("pu" + k);
-        qiSfDiff[k] = this.sf.diff("qi" + k);
+        double puk = p[pu + k];
+        double qik = q[qi + k];
+        p[pu + k] +=
+            this.pOptimizer.step(
+                pu + k,
+                this.learningRate * (error * gradient[k] - this.regularization * puk));
+        q[qi + k] +=
+            this.qOptimizer.step(
+                qi + k,
+                this.learningRate
+                    * (error * gradient[this.numFactors + k] - this.regularization * qik));
       }
-    } catch (Exception e) {
-      func = "Zero";
+    }
+  }
 
-      this.sf = SymFunction.parse(func);
+  private void miniBatch(
+      Partition partition, Ratings ratings, int from, int to, MiniBatch miniBatch) {
+    Tape tape = Tape.get();
 
-      puSfDiff = new SymFunction[this.numFactors];
-      qiSfDiff = new SymFunction[this.numFactors];
+    for (int j = from; j < to; j++) {
+      int r = ratings.order[j];
+      int userIndex = ratings.users[r];
+      int itemIndex = ratings.items[r];
+      int pu = userIndex * this.numFactors;
+      int qi = itemIndex * this.numFactors;
 
+      TreeKernel kernel = partition.piecewiseKernel.select(p, pu, q, qi);
+      tape.ensure(kernel);
+
+      double[] gradient = tape.getGradient();
+      double error = ratings.values[r] - this.evalGradient(kernel, tape, pu, qi);
+      partition.loss += error * error;
+
+      for (int k = 0; k < this.numFactors; k++) {
+        dp[pu + k] += this.learningRate * (error * gradient[k] - this.regularization * p[pu + k]);
+        dq[qi + k] +=
+            this.learningRate
+                * (error * gradient[this.numFactors + k] - this.regularization * q[qi + k]);
+      }
+
+      miniBatch.touch(userIndex, itemIndex);
+    }
+
+    this.pOptimizer.nextStep();
+    this.qOptimizer.nextStep();
+    for (int j = 0; j < miniBatch.numUsers; j++) {
+      int pu = miniBatch.users[j] * this.numFactors;
+      for (int k = 0; k < this.numFactors; k++) {
+        p[pu + k] += this.pOptimizer.step(pu + k, dp[pu + k]);
+        dp[pu + k] = 0.0;
+      }
+    }
+    for (int j = 0; j < miniBatch.numItems; j++) {
+      int qi = miniBatch.items[j] * this.numFactors;
       for (int k = 0; k < this.numFactors; k++) {
-        puSfDiff[k] = this.sf.diff("pu" + k);
-        qiSfDiff[k] = this.sf.diff("qi" + k);
+        q[qi + k] += this.qOptimizer.step(qi + k, dq[qi + k]);
+        dq[qi + k] = 0.0;
       }
     }
+    miniBatch.clear();
+  }
 
-    return this.sf.eval(params);
+  /**
+   * Hash of the training ratings, which tells apart the datamodels and the held out folds of
+   * different cross-validation splits
+   *
+   * @return Fingerprint of the ratings
+   */
+  private long fingerprint() {
+    long hash = this.numItems;
+    for (User user : super.getDataModel().getUsers()) {
+      hash = hash * 31 + user.getUserIndex();
+      for (int i = 0; i < user.getNumberOfRatings(); i++) {
+        hash = hash * 31 + user.getItemAt(i);
+        hash = hash * 31 + Double.hashCode(user.getRatingAt(i));
+      }
+    }
+    if (this.folds != null) {
+      hash = hash * 31 + Long.hashCode(this.folds.getSeed());
+      hash = hash * 31 + this.folds.getNumFolds();
+      hash = hash * 31 + this.fold;
+    }
+    return hash;
+  }
+
+  /**
+   * Checks the state of the training after an iteration
+   *
+   * @param iter Current iteration
+   * @param partitions Partitions with the loss of the iteration
+   * @param convergence Convergence tracker, null if training runs every iteration
+   * @return true if the loss has plateaued and training must stop
+   * @throws DivergenceException if training diverged
+   */
+  private boolean hasConverged(int iter, Partition[] partitions, Convergence convergence) {
+    double loss = this.checkDivergence(iter, partitions);
+    if (convergence == null) return false;
+    return convergence.update(this.validationRatio > 0.0 ? this.validationLoss() : loss);
+  }
+
+  /**
+   * Squared error of the held out ratings with the current factors
+   *
+   * @return Validation loss
+   */
+  private double validationLoss() {
+    Tape tape = Tape.get();
+    Ratings ratings = this.ratings;
+
+    double loss = 0.0;
+    for (int r : ratings.heldOut) {
+      int pu = ratings.users[r] * this.numFactors;
+      int qi = ratings.items[r] * this.numFactors;
+
+      TreeKernel kernel = this.piecewiseKernel.select(p, pu, q, qi);
+      double error =
+          ratings.values[r]
+              - kernel.getFunction().eval(p, pu, q, qi, tape.ensure(kernel).getRegisters());
+      loss += error * error;
+    }
+    return loss;
+  }
+
+  /**
+   * Aborts training if the loss of the last iteration is not finite or a factor is past the
+   * divergence bound. NaN factors fail the comparison and are caught as well.
+   *
+   * @param iter Current iteration
+   * @param partitions Partitions with the loss of the iteration
+   * @return Training loss of the iteration
+   * @throws DivergenceException if training diverged
+   */
+  private double checkDivergence(int iter, Partition[] partitions) {
+    double loss = 0.0;
+    for (Partition partition : partitions) loss += partition.loss;
+    if (Double.isNaN(loss) || Double.isInfinite(loss)) {
+      throw new DivergenceException(iter, "Non-finite loss");
+    }
+
+    for (double value : p) {
+      if (!(Math.abs(value) <= this.divergenceBound)) {
+        throw new DivergenceException(iter, "User factor " + value + " out of bounds");
+      }
+    }
+    for (double value : q) {
+      if (!(Math.abs(value) <= this.divergenceBound)) {
+        throw new DivergenceException(iter, "Item factor " + value + " out of bounds");
+      }
+    }
+    return loss;
+  }
+
+  /**
+   * Evaluates the prediction and its gradient, which is left in the gradient buffer of the tape
+   *
+   * @param kernel Kernel of the rating
+   * @param tape Tape of the current thread, already fitting the kernel
+   * @param pu Offset of the user row inside p
+   * @param qi Offset of the item row inside q
+   * @return Prediction
+   */
+  private double evalGradient(TreeKernel kernel, Tape tape, int pu, int qi) {
+    double[] gradient = tape.getGradient();
+    switch (this.gradientMode) {
+      case SYMBOLIC:
+        {
+          GradientDag dag = kernel.getSymbolic();
+          double[] registers = tape.ensure(kernel).getRegisters();
+          return dag.eval(p, pu, q, qi, registers, gradient);
+        }
+      case REVERSE:
+        return kernel
+            .getAdjoint()
+            .eval(p, pu, q, qi, tape.getRegisters(), tape.getAdjoints(), gradient);
+      default:
+        return kernel
+            .getGradient()
+            .eval(p, pu, q, qi, tape.getRegisters(), tape.getTangents(), gradient);
+    }
+  }
+
+  /**
+   * Splits the users in numPartitions contiguous ranges with a similar number of ratings. The
+   * split only depends on the data model and numPartitions.
+   *
+   * @return Partitions of the users
+   */
+  private Partition[] createPartitions() {
+    int numUsers = super.getDataModel().getNumberOfUsers();
+    int numPartitions = Math.max(1, Math.min(this.numPartitions, numUsers));
+    if (numPartitions == 1) {
+      return new Partition[] {new Partition(0, numUsers, this.piecewiseKernel, this.dq)};
+    }
+
+    long totalRatings = 0;
+    for (User user : super.getDataModel().getUsers()) totalRatings += user.getNumberOfRatings();
+
+    Partition[] partitions = new Partition[numPartitions];
+    int fromUser = 0;
+    long ratings = 0;
+    for (int i = 0; i < numPartitions; i++) {
+      int toUser = fromUser;
+      long target = totalRatings * (i + 1) / numPartitions;
+      while (toUser < numUsers && (ratings < target || i == numPartitions - 1)) {
+        ratings += super.getDataModel().getUser(toUser).getNumberOfRatings();
+        toUser++;
+      }
+      partitions[i] =
+          new Partition(
+              fromUser,
+              toUser,
+              new PiecewiseKernel(this.simplifiedTree, this.numFactors),
+              new double[this.dq.length]);
+      fromUser = toUser;
+    }
+    return partitions;
+  }
+
+  @Override
+  public synchronized double predict(int userIndex, int itemIndex) {
+    int pu = userIndex * this.numFactors;
+    int qi = itemIndex * this.numFactors;
+
+    TreeKernel kernel;
+    try {
+      kernel = this.piecewiseKernel.select(p, pu, q, qi);
+    } catch (Exception e) {
+      kernel = KernelCache.get("Zero", this.numFactors);
+    }
+    double[] registers = Tape.get().ensure(kernel).getRegisters();
+
+    return kernel.getFunction().eval(p, pu, q, qi, registers);
   }
 
   public Tree getTree() {
     return this.treeInstance;
   }
 
+  public GradientMode getGradientMode() {
+    return this.gradientMode;
+  }
+
+  public TrainingMode getTrainingMode() {
+    return this.trainingMode;
+  }
+
+  public boolean isWarmStarted() {
+    return this.warmStarted;
+  }
+
+  public int getNumItersUsed() {
+    return this.numItersUsed;
+  }
+
+  /**
+   * Sets whether the model uses FactorStore when it is enabled. Models trained outside the
+   * evolution, such as refits on the full data, should not use it, since their factors would evict
+   * the ones retained for the children.
+   *
+   * @param factorStore false to neither warm-start nor retain the factors
+   */
+  public void setFactorStore(boolean factorStore) {
+    this.factorStore = factorStore;
+  }
+
+  private boolean usesFactorStore() {
+    return this.factorStore && FactorStore.isEnabled();
+  }
+
+  public double getDivergenceBound() {
+    return this.divergenceBound;
+  }
+
+  public void setDivergenceBound(double divergenceBound) {
+    this.divergenceBound = divergenceBound;
+  }
+
+  public double getConvergenceTolerance() {
+    return this.convergenceTolerance;
+  }
+
+  public void setConvergenceTolerance(double convergenceTolerance) {
+    this.convergenceTolerance = convergenceTolerance;
+  }
+
+  public int getConvergenceWindow() {
+    return this.convergenceWindow;
+  }
+
+  public void setConvergenceWindow(int convergenceWindow) {
+    this.convergenceWindow = Math.max(1, convergenceWindow);
+  }
+
+  public double getValidationRatio() {
+    return this.validationRatio;
+  }
+
+  public void setValidationRatio(double validationRatio) {
+    this.validationRatio = validationRatio;
+  }
+
+  public Folds getFolds() {
+    return this.folds;
+  }
+
+  public int getFold() {
+    return this.fold;
+  }
+
+  /**
+   * Holds the ratings of a cross-validation fold out of training. It must be called before fit.
+   *
+   * @param folds Split of the ratings of the datamodel, null to train every rating
+   * @param fold Fold to hold out, negative to train every rating
+   */
+  public void setFold(Folds folds, int fold) {
+    this.folds = folds;
+    this.fold = fold;
+  }
+
+  public boolean isHoisting() {
+    return this.hoisting;
+  }
+
+  public void setHoisting(boolean hoisting) {
+    this.hoisting = hoisting;
+  }
+
+  public int getNumPartitions() {
+    return this.numPartitions;
+  }
+
+  /**
+   * Sets the number of user partitions whose gradients are accumulated in parallel on the
+   * fork-join pool. Results are bit-reproducible for a given number of partitions, whatever the
+   * number of threads, but differ in the last bits from the ones of a different number of
+   * partitions.
+   *
+   * @param numPartitions Number of partitions, 1 to train sequentially
+   */
+  public void setNumPartitions(int numPartitions) {
+    this.numPartitions = Math.max(1, numPartitions);
+  }
+
+  /**
+   * Hoisting requires the same kernel for every rating, so trees with conditions are excluded
+   *
+   * @param kernel Kernel selected for the current rating
+   * @return true if the invariant parts of the kernel can be evaluated once per user and item
+   */
+  private boolean isHoistable(TreeKernel kernel) {
+    return this.hoisting
+        && this.gradientMode == GradientMode.FORWARD
+        && this.piecewiseKernel.getNumGuards() == 0
+        && kernel.getGradient().isSeparable();
+  }
+
   private double random(double min, double max) {
     return seed.nextDouble() * (max - min) + min;
   }
 
-  private double[] random(int size, double min, double max) {
-    double[] d = new double[size];
-    for (int i = 0; i < size; i++) d[i] = this.random(min, max);
-    return d;
+  /** Private inner class with a range of users, or of shuffled ratings, and its training state * */
+  private static class Partition {
+
+    private final int from;
+    private final int to;
+    private final PiecewiseKernel piecewiseKernel;
+    private final double[] dq;
+
+    private double[] itemStates = null;
+    private int[] itemStatesIter = null;
+
+    /** Squared error of the ratings trained in the current iteration * */
+    private double loss = 0.0;
+
+    private Partition(int from, int to, PiecewiseKernel piecewiseKernel, double[] dq) {
+      this.from = from;
+      this.to = to;
+      this.piecewiseKernel = piecewiseKernel;
+      this.dq = dq;
+    }
   }
 
-  private HashMap<String, Double> getParams(double[] pu, double[] qi) {
-    HashMap<String, Double> map = new HashMap<>();
-    for (int k = 0; k < this.numFactors; k++) {
-      map.put("pu" + k, pu[k]);
-      map.put("qi" + k, qi[k]);
+  /**
+   * Private inner class with the view of the ratings trained by the model. The ratings are read
+   * from a RatingStore shared with the other models of the same split, and the order array is only
+   * copied when it is shuffled or a validation slice is held out.
+   */
+  private static class Ratings {
+
+    private final int[] users;
+    private final int[] items;
+    private final double[] values;
+
+    /** Index of the first rating of each user, followed by the number of ratings * */
+    private final int[] offsets;
+
+    /** Split of the ratings, null if no fold is held out * */
+    private final Folds folds;
+
+    /** Fold held out of training * */
+    private final int fold;
+
+    /** Indices of the ratings in the order they are trained * */
+    private int[] order;
+
+    /** Whether order is a private copy that can be modified * */
+    private boolean ownsOrder = false;
+
+    /** Whether each rating is held out for validation, null if there is no validation * */
+    private boolean[] isValidation = null;
+
+    /** Indices of the ratings held out for validation * */
+    private int[] heldOut = new int[0];
+
+    /**
+     * View of the ratings trained with a fold held out
+     *
+     * @param store Ratings of the datamodel
+     * @param folds Split of the ratings of the store, null if no fold is held out
+     * @param fold Fold held out, negative to train every rating
+     */
+    private Ratings(RatingStore store, Folds folds, int fold) {
+      this.users = store.users;
+      this.items = store.items;
+      this.values = store.values;
+      this.offsets = store.offsets;
+      this.folds = folds != null && fold >= 0 ? folds : null;
+      this.fold = fold;
+
+      if (folds != null) {
+        this.order = folds.getTrainRatings(fold);
+      } else {
+        this.order = new int[store.getNumRatings()];
+        for (int r = 0; r < this.order.length; r++) this.order[r] = r;
+        this.ownsOrder = true;
+      }
+    }
+
+    /**
+     * Holds a random slice of the training ratings out for validation
+     *
+     * @param ratio Ratio of the training ratings to hold out
+     * @param random Random generator
+     */
+    private void holdOut(double ratio, Random random) {
+      this.isValidation = new boolean[this.values.length];
+
+      int numValidation = 0;
+      for (int r : this.order) {
+        if (random.nextDouble() < ratio) {
+          this.isValidation[r] = true;
+          numValidation++;
+        }
+      }
+
+      int[] order = new int[this.order.length - numValidation];
+      this.heldOut = new int[numValidation];
+      for (int j = 0, h = 0, t = 0; j < this.order.length; j++) {
+        int r = this.order[j];
+        if (this.isValidation[r]) this.heldOut[h++] = r;
+        else order[t++] = r;
+      }
+      this.order = order;
+      this.ownsOrder = true;
+    }
+
+    private boolean isHeldOut(int r) {
+      return (this.folds != null && this.folds.getFold(r) == this.fold)
+          || (this.isValidation != null && this.isValidation[r]);
+    }
+
+    /** Fisher-Yates shuffle of the training order */
+    private void shuffle(Random random) {
+      if (!this.ownsOrder) {
+        this.order = this.order.clone();
+        this.ownsOrder = true;
+      }
+      for (int i = this.order.length - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int aux = this.order[i];
+        this.order[i] = this.order[j];
+        this.order[j] = aux;
+      }
+    }
+  }
+
+  /** Private inner class with the users and items touched by the current mini-batch * */
+  private static class MiniBatch {
+
+    private final int[] users;
+    private final int[] items;
+    private final boolean[] userTouched;
+    private final boolean[] itemTouched;
+    private int numUsers = 0;
+    private int numItems = 0;
+
+    private MiniBatch(int numUsers, int numItems) {
+      this.users = new int[numUsers];
+      this.items = new int[numItems];
+      this.userTouched = new boolean[numUsers];
+      this.itemTouched = new boolean[numItems];
+    }
+
+    private void touch(int userIndex, int itemIndex) {
+      if (!this.userTouched[userIndex]) {
+        this.userTouched[userIndex] = true;
+        this.users[this.numUsers++] = userIndex;
+      }
+      if (!this.itemTouched[itemIndex]) {
+        this.itemTouched[itemIndex] = true;
+        this.items[this.numItems++] = itemIndex;
+      }
+    }
+
+    private void clear() {
+      for (int j = 0; j < this.numUsers; j++) this.userTouched[this.users[j]] = false;
+      for (int j = 0; j < this.numItems; j++) this.itemTouched[this.items[j]] = false;
+      this.numUsers = 0;
+      this.numItems = 0;
+    }
+  }
+
+  /** Private inner class tracking the relative loss change over a window of iterations * */
+  private static class Convergence {
+
+    private final double[] losses;
+    private final double tolerance;
+    private int count = 0;
+
+    private Convergence(int window, double tolerance) {
+      this.losses = new double[window + 1];
+      this.tolerance = tolerance;
+    }
+
+    /**
+     * Records the loss of an iteration
+     *
+     * @param loss Loss of the iteration
+     * @return true if the loss decreased less than the tolerance over the window
+     */
+    private boolean update(double loss) {
+      int window = this.losses.length - 1;
+      this.losses[this.count % this.losses.length] = loss;
+      this.count++;
+      if (this.count <= window) return false;
+
+      double previous = this.losses[this.count % this.losses.length];
+      if (previous == 0.0) return true;
+      return (previous - loss) / previous < this.tolerance;
     }
-    return map;
   }
 }
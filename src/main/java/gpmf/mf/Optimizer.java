@@ -0,0 +1,176 @@
+package gpmf.mf;
+
+/**
+ * Update rule applied to the latent factors. MF computes the plain gradient descent increment of
+ * every factor, learningRate times the descent direction, and the optimizer turns it into the
+ * increment actually applied. The state of the optimizer is kept in flat arrays with the same
+ * layout than the factors matrix it updates, so each matrix gets its own instance.
+ *
+ * <p>Instances are not thread safe. In HOGWILD mode concurrent updates of the state of the same
+ * factor may be lost, as happens with the factors themselves.
+ */
+public abstract class Optimizer {
+
+  /** Available update rules */
+  public enum Type {
+    /** Plain gradient descent, the increment is applied as is */
+    SGD,
+    /** Gradient descent with classical momentum */
+    MOMENTUM,
+    /** Per factor learning rates scaled by the accumulated squared gradients */
+    ADAGRAD,
+    /** Bias corrected moving averages of the gradients and their squares */
+    ADAM
+  }
+
+  /** Momentum coefficient of MOMENTUM */
+  public static final double MOMENTUM = 0.9;
+
+  /** Decay rate of the first moment of ADAM */
+  public static final double BETA1 = 0.9;
+
+  /** Decay rate of the second moment of ADAM */
+  public static final double BETA2 = 0.999;
+
+  /** Term added to the denominators of ADAGRAD and ADAM to avoid divisions by zero */
+  public static final double EPSILON = 1e-8;
+
+  protected final double learningRate;
+
+  /** Number of update rounds started */
+  protected int steps = 0;
+
+  protected Optimizer(double learningRate) {
+    this.learningRate = learningRate;
+  }
+
+  /**
+   * Creates an optimizer
+   *
+   * @param type Update rule
+   * @param size Number of factors of the matrix to update
+   * @param learningRate Learning rate
+   * @return Optimizer instance
+   */
+  public static Optimizer create(Type type, int size, double learningRate) {
+    switch (type) {
+      case MOMENTUM:
+        return new Momentum(size, learningRate);
+      case ADAGRAD:
+        return new AdaGrad(size, learningRate);
+      case ADAM:
+        return new Adam(size, learningRate);
+      default:
+        return new Sgd(learningRate);
+    }
+  }
+
+  /**
+   * Starts a new update round: an iteration in BATCH mode, a batch in MINI_BATCH mode or an epoch
+   * in HOGWILD mode
+   */
+  public void nextStep() {
+    this.steps++;
+  }
+
+  /**
+   * Computes the increment of a factor
+   *
+   * @param j Index of the factor inside the matrix
+   * @param delta Plain gradient descent increment, learningRate times the descent direction
+   * @return Increment to apply
+   */
+  public abstract double step(int j, double delta);
+
+  /** Private inner class of the plain gradient descent * */
+  private static class Sgd extends Optimizer {
+
+    private Sgd(double learningRate) {
+      super(learningRate);
+    }
+
+    @Override
+    public double step(int j, double delta) {
+      return delta;
+    }
+  }
+
+  /** Private inner class of the gradient descent with momentum * */
+  private static class Momentum extends Optimizer {
+
+    private final double[] velocity;
+
+    private Momentum(int size, double learningRate) {
+      super(learningRate);
+      this.velocity = new double[size];
+    }
+
+    @Override
+    public double step(int j, double delta) {
+      double v = MOMENTUM * this.velocity[j] + delta;
+      this.velocity[j] = v;
+      return v;
+    }
+  }
+
+  /** Private inner class of AdaGrad * */
+  private static class AdaGrad extends Optimizer {
+
+    private final double[] squares;
+
+    private AdaGrad(int size, double learningRate) {
+      super(learningRate);
+      this.squares = new double[size];
+    }
+
+    @Override
+    public double step(int j, double delta) {
+      if (this.learningRate == 0.0) return 0.0;
+
+      double g = delta / this.learningRate;
+      double s = this.squares[j] + g * g;
+      this.squares[j] = s;
+      return this.learningRate * g / (Math.sqrt(s) + EPSILON);
+    }
+  }
+
+  /** Private inner class of Adam * */
+  private static class Adam extends Optimizer {
+
+    private final double[] moments;
+    private final double[] squares;
+
+    /** Bias corrections of the current round */
+    private int correctedSteps = -1;
+
+    private double correction1;
+    private double correction2;
+
+    private Adam(int size, double learningRate) {
+      super(learningRate);
+      this.moments = new double[size];
+      this.squares = new double[size];
+    }
+
+    @Override
+    public double step(int j, double delta) {
+      if (this.learningRate == 0.0) return 0.0;
+
+      if (this.correctedSteps != this.steps) {
+        int t = Math.max(1, this.steps);
+        this.correction1 = 1.0 - Math.pow(BETA1, t);
+        this.correction2 = 1.0 - Math.pow(BETA2, t);
+        this.correctedSteps = this.steps;
+      }
+
+      double g = delta / this.learningRate;
+      double m = BETA1 * this.moments[j] + (1.0 - BETA1) * g;
+      double v = BETA2 * this.squares[j] + (1.0 - BETA2) * g * g;
+      this.moments[j] = m;
+      this.squares[j] = v;
+      return this.learningRate
+          * (m / this.correction1)
+          / (Math.sqrt(v / this.correction2) + EPSILON);
+    }
+  }
+}
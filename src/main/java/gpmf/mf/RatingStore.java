@@ -0,0 +1,59 @@
+package gpmf.mf;
+
+import es.upm.etsisi.cf4j.data.DataModel;
+import es.upm.etsisi.cf4j.data.User;
+
+/**
+ * Ratings of a datamodel as primitive arrays. Ratings are numbered following the order of
+ * DataModel.getUsers and the order of the ratings of each user, so the ratings of a user are
+ * contiguous. The arrays are never modified once built, so a single store can be shared by every
+ * model trained on the same datamodel.
+ */
+public class RatingStore {
+
+  /** User index of each rating */
+  final int[] users;
+
+  /** Item index of each rating */
+  final int[] items;
+
+  /** Value of each rating */
+  final double[] values;
+
+  /** Index of the first rating of each user, followed by the number of ratings */
+  final int[] offsets;
+
+  /**
+   * Copies the ratings of a datamodel
+   *
+   * @param datamodel DataModel instance
+   */
+  public RatingStore(DataModel datamodel) {
+    int numRatings = 0;
+    for (User user : datamodel.getUsers()) numRatings += user.getNumberOfRatings();
+
+    this.users = new int[numRatings];
+    this.items = new int[numRatings];
+    this.values = new double[numRatings];
+    this.offsets = new int[datamodel.getNumberOfUsers() + 1];
+
+    int r = 0;
+    for (User user : datamodel.getUsers()) {
+      this.offsets[user.getUserIndex()] = r;
+      for (int i = 0; i < user.getNumberOfRatings(); i++, r++) {
+        this.users[r] = user.getUserIndex();
+        this.items[r] = user.getItemAt(i);
+        this.values[r] = user.getRatingAt(i);
+      }
+    }
+    this.offsets[this.offsets.length - 1] = numRatings;
+  }
+
+  public int getNumRatings() {
+    return this.values.length;
+  }
+
+  public int getNumUsers() {
+    return this.offsets.length - 1;
+  }
+}
@@ -95,6 +95,7 @@ public class Printer {
       double maeScore,
       double mseScore,
       int invalidChildren,
+      int cacheHits,
       int generationNumber) {
     try {
       writerCSV.write(scoreMedian + ";" + maeScore + ";" + mseScore + "\n");
@@ -102,6 +103,7 @@ public class Printer {
       writerJSON.write("\t\t\"generationNumber\": " + generationNumber + ",\n");
       writerJSON.write("\t\t\"scoreMedianMSE\": " + scoreMedian + ",\n");
       writerJSON.write("\t\t\"invalidChildren\": " + invalidChildren + ",\n");
+      writerJSON.write("\t\t\"cacheHits\": " + cacheHits + ",\n");
       writerJSON.write("\t\t\"bestScore\": " + population.get(0).getScore() + ",\n");
       if (Double.isNaN(maeScore)) writerJSON.write("\t\t\"bestMAEScoreTest\": null,\n");
       else writerJSON.write("\t\t\"bestMSEScoreTest\": " + +maeScore + ",\n");